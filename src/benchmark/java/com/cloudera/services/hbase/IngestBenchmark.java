@@ -0,0 +1,301 @@
+package com.cloudera.services.hbase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Admin;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.ConnectionFactory;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hive.ql.io.RCFile;
+import org.apache.hadoop.hive.ql.io.orc.OrcFile;
+import org.apache.hadoop.hive.serde2.columnar.BytesRefArrayWritable;
+import org.apache.hadoop.hive.serde2.columnar.BytesRefWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+import parquet.example.data.Group;
+import parquet.example.data.simple.SimpleGroupFactory;
+import parquet.hadoop.ParquetWriter;
+import parquet.hadoop.example.GroupWriteSupport;
+import parquet.schema.MessageType;
+import parquet.schema.MessageTypeParser;
+
+/**
+ * Runs every importer end to end against an HBase mini cluster and the local
+ * MapReduce runner, on generated PWData-shaped input, and prints rows/sec,
+ * HFile bytes, shuffle bytes and bulk load time for each. Nothing leaves the
+ * machine.
+ *
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:java -Dexec.args="1000000 text csv"
+ * </pre>
+ *
+ * Arguments are the number of rows (default 100000) followed by the formats
+ * to run: text, csv, rc, avro, parquet, orc (default all). Any other
+ * <code>-D</code> settings, such as bulkload.dedup.enabled, are passed to the
+ * importers.
+ */
+public class IngestBenchmark {
+
+	static final String TABLE_NAME = "qualys";
+	static final String[] COLUMNS = BulkImporterFromParquet.COLUMNS;
+	static final String[] STATES = { "AL", "AK", "AZ", "CA", "CO", "FL", "GA", "IL", "NY", "TX", "WA" };
+
+	public static void main(String[] args) throws Exception {
+		int rows = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		List<String> formats = args.length > 1 ? Arrays.asList(args).subList(1, args.length)
+				: Arrays.asList("text", "csv", "rc", "avro", "parquet", "orc");
+
+		HBaseTestingUtility util = new HBaseTestingUtility();
+		util.startMiniCluster();
+		try {
+			Configuration conf = util.getConfiguration();
+			conf.set("mapreduce.framework.name", "local");
+			for (Map.Entry<Object, Object> e : System.getProperties().entrySet()) {
+				if (e.getKey().toString().startsWith("bulkload.")) {
+					conf.set(e.getKey().toString(), e.getValue().toString());
+				}
+			}
+			File site = File.createTempFile("hbase-site", ".xml");
+			site.deleteOnExit();
+			OutputStream siteOut = new FileOutputStream(site);
+			try {
+				conf.writeXml(siteOut);
+			} finally {
+				siteOut.close();
+			}
+
+			FileSystem fs = FileSystem.get(conf);
+			Path base = fs.makeQualified(new Path("/benchmark"));
+			Map<String, Properties> results = new LinkedHashMap<String, Properties>();
+			for (String format : formats) {
+				Path input = new Path(base, "input-" + format);
+				Path output = new Path(base, "output-" + format);
+				Path report = new Path(base, "report-" + format);
+				generate(format, fs, conf, input, rows);
+				recreateTable(conf);
+
+				Configuration runConf = new Configuration(conf);
+				runConf.set(ImportReport.PATH_KEY, report.toString());
+				long start = System.currentTimeMillis();
+				Properties result = new Properties();
+				try {
+					int exitCode = ToolRunner.run(runConf, importer(format),
+							new String[] { site.getAbsolutePath(), input.toString(), output.toString() });
+					if (exitCode == 0 && fs.exists(report)) {
+						InputStream in = fs.open(report);
+						try {
+							result.load(in);
+						} finally {
+							in.close();
+						}
+					} else {
+						result.setProperty("error", "exit code " + exitCode);
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+					result.setProperty("error", e.toString());
+				}
+				result.setProperty("total.millis", Long.toString(System.currentTimeMillis() - start));
+				results.put(format, result);
+			}
+			print(rows, results);
+		} finally {
+			util.shutdownMiniCluster();
+		}
+	}
+
+	static Tool importer(String format) {
+		if ("text".equals(format)) {
+			return new BulkImporterFromText();
+		} else if ("csv".equals(format)) {
+			return new BulkImporterFromCSVText();
+		} else if ("rc".equals(format)) {
+			return new BulkImporterFromRC();
+		} else if ("avro".equals(format)) {
+			return new BulkImporterFromAvro();
+		} else if ("parquet".equals(format)) {
+			return new BulkImporterFromParquet();
+		} else if ("orc".equals(format)) {
+			return new BulkImporterFromOrc();
+		}
+		throw new IllegalArgumentException("Unknown format " + format);
+	}
+
+	/**
+	 * @return the columns of generated row i; low-cardinality columns repeat like the real feed
+	 */
+	static String[] record(int i) {
+		return new String[] {
+				String.format("%010d", i),
+				Integer.toString(i % 5000),
+				"Utility Co " + (i % 700),
+				STATES[i % STATES.length],
+				i % 3 == 0 ? "Delivery" : "Bundled",
+				i % 5 == 0 ? "Cooperative" : "Investor Owned",
+				Double.toString((i % 1000) / 7919.0),
+				Double.toString((i % 997) / 7919.0),
+				Double.toString((i % 991) / 7919.0) };
+	}
+
+	static void generate(String format, FileSystem fs, Configuration conf, Path dir, int rows) throws Exception {
+		fs.delete(dir, true);
+		fs.mkdirs(dir);
+		Path file = new Path(dir, "part-0");
+		if ("text".equals(format) || "csv".equals(format)) {
+			String separator = "text".equals(format) ? "\u0001" : ",";
+			Writer out = new OutputStreamWriter(fs.create(file), "UTF-8");
+			try {
+				for (int i = 0; i < rows; i++) {
+					String[] record = record(i);
+					StringBuilder line = new StringBuilder();
+					for (int c = 0; c < record.length; c++) {
+						line.append(c == 0 ? "" : separator).append(record[c]);
+					}
+					out.write(line.append('\n').toString());
+				}
+			} finally {
+				out.close();
+			}
+		} else if ("rc".equals(format)) {
+			Configuration rcConf = new Configuration(conf);
+			rcConf.setInt(RCFile.COLUMN_NUMBER_CONF_STR, COLUMNS.length);
+			RCFile.Writer out = new RCFile.Writer(fs, rcConf, file);
+			try {
+				BytesRefArrayWritable row = new BytesRefArrayWritable(COLUMNS.length);
+				for (int i = 0; i < rows; i++) {
+					String[] record = record(i);
+					for (int c = 0; c < record.length; c++) {
+						byte[] value = Bytes.toBytes(record[c]);
+						row.set(c, new BytesRefWritable(value, 0, value.length));
+					}
+					out.append(row);
+				}
+			} finally {
+				out.close();
+			}
+		} else if ("avro".equals(format)) {
+			DataFileWriter<PWData> out = new DataFileWriter<PWData>(new SpecificDatumWriter<PWData>(PWData.class));
+			out.create(PWData.getClassSchema(), fs.create(new Path(dir, "part-0.avro")));
+			try {
+				for (int i = 0; i < rows; i++) {
+					String[] record = record(i);
+					out.append(new PWData(record[0], record[1], record[2], record[3], record[4],
+							record[5], record[6], record[7], record[8]));
+				}
+			} finally {
+				out.close();
+			}
+		} else if ("parquet".equals(format)) {
+			StringBuilder schema = new StringBuilder("message PWData {");
+			for (String column : COLUMNS) {
+				schema.append(" optional binary ").append(column).append(" (UTF8);");
+			}
+			MessageType type = MessageTypeParser.parseMessageType(schema.append(" }").toString());
+			Configuration parquetConf = new Configuration(conf);
+			GroupWriteSupport.setSchema(type, parquetConf);
+			SimpleGroupFactory groups = new SimpleGroupFactory(type);
+			ParquetWriter<Group> out = new ParquetWriter<Group>(new Path(dir, "part-0.parquet"),
+					parquetConf, new GroupWriteSupport());
+			try {
+				for (int i = 0; i < rows; i++) {
+					String[] record = record(i);
+					Group group = groups.newGroup();
+					for (int c = 0; c < record.length; c++) {
+						group.append(COLUMNS[c], record[c]);
+					}
+					out.write(group);
+				}
+			} finally {
+				out.close();
+			}
+		} else if ("orc".equals(format)) {
+			List<ObjectInspector> inspectors = new ArrayList<ObjectInspector>();
+			for (int c = 0; c < COLUMNS.length; c++) {
+				inspectors.add(PrimitiveObjectInspectorFactory.javaStringObjectInspector);
+			}
+			ObjectInspector inspector = ObjectInspectorFactory.getStandardStructObjectInspector(
+					Arrays.asList(COLUMNS), inspectors);
+			org.apache.hadoop.hive.ql.io.orc.Writer out = OrcFile.createWriter(new Path(dir, "part-0.orc"),
+					OrcFile.writerOptions(conf).fileSystem(fs).inspector(inspector));
+			try {
+				for (int i = 0; i < rows; i++) {
+					out.addRow(Arrays.asList((Object[]) record(i)));
+				}
+			} finally {
+				out.close();
+			}
+		} else {
+			throw new IllegalArgumentException("Unknown format " + format);
+		}
+	}
+
+	/**
+	 * Drop and recreate the table with ten evenly split regions, so every
+	 * importer loads into the same empty layout. Families are uncompressed, as
+	 * a single box may not have the native Snappy libraries.
+	 */
+	static void recreateTable(Configuration conf) throws Exception {
+		Connection connection = ConnectionFactory.createConnection(conf);
+		Admin admin = connection.getAdmin();
+		try {
+			TableName tableName = TableName.valueOf(TABLE_NAME);
+			if (admin.tableExists(tableName)) {
+				admin.disableTable(tableName);
+				admin.deleteTable(tableName);
+			}
+			HTableDescriptor htd = new HTableDescriptor(tableName);
+			htd.addFamily(new HColumnDescriptor("c").setMaxVersions(3));
+			htd.addFamily(new HColumnDescriptor("h").setMaxVersions(3).setTimeToLive(7776000));
+			// row keys start with an MD5, so spread the regions over the binary key space
+			byte[][] bounds = Bytes.split(new byte[] { 0 }, new byte[] { (byte) 0xff }, 9);
+			admin.createTable(htd, Arrays.copyOfRange(bounds, 1, bounds.length - 1));
+		} finally {
+			admin.close();
+			connection.close();
+		}
+	}
+
+	static void print(int rows, Map<String, Properties> results) {
+		System.out.println();
+		System.out.println("Ingest benchmark, " + rows + " generated rows");
+		System.out.println(String.format("%-8s %10s %12s %14s %14s %10s %10s",
+				"format", "rows", "rows/sec", "hfile bytes", "shuffle bytes", "job ms", "load ms"));
+		for (Map.Entry<String, Properties> e : results.entrySet()) {
+			Properties result = e.getValue();
+			if (result.getProperty("error") != null) {
+				System.out.println(String.format("%-8s failed: %s", e.getKey(), result.getProperty("error")));
+				continue;
+			}
+			long loaded = Long.parseLong(result.getProperty("rows"));
+			long jobMillis = Long.parseLong(result.getProperty("job.millis"));
+			System.out.println(String.format("%-8s %10d %12.0f %14s %14s %10s %10s", e.getKey(), loaded,
+					loaded * 1000.0 / Math.max(1, jobMillis), result.getProperty("hfile.bytes"),
+					result.getProperty("shuffle.bytes"), result.getProperty("job.millis"),
+					result.getProperty("load.millis")));
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package com.cloudera.services.hbase;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Heap allocation and GC time of the importer's mappers and reducers,
+ * published as job counters when <code>bulkload.metrics.allocation</code> is
+ * set. Every <code>bulkload.metrics.allocation.sample</code>th record (or
+ * reduced row), the bytes the task thread allocates until the next one starts
+ * are measured, covering reading, parsing, hashing and writing it. Divide
+ * SAMPLED_ALLOCATED_BYTES by SAMPLED_RECORDS for the average;
+ * {@link ImportReport} does so. GC time is the JVM's collection time between
+ * setup and cleanup, so with <code>bulkload.map.threads</code> it is counted
+ * once per thread.
+ */
+public class AllocationMeter {
+
+	public static final String ENABLED_KEY = "bulkload.metrics.allocation";
+	public static final String SAMPLE_KEY = "bulkload.metrics.allocation.sample";
+
+	public enum Counters {
+		MAP_SAMPLED_RECORDS, MAP_SAMPLED_ALLOCATED_BYTES, MAP_GC_MILLIS,
+		REDUCE_SAMPLED_ROWS, REDUCE_SAMPLED_ALLOCATED_BYTES, REDUCE_GC_MILLIS
+	}
+
+	private final ThreadMXBean threads;
+	private final long threadId = Thread.currentThread().getId();
+	private final boolean map;
+	private final int sampleEvery;
+	private final long gcStart = gcMillis();
+	private long count;
+	private boolean sampling;
+	private long sampleStart;
+	private long sampled;
+	private long allocated;
+
+	private AllocationMeter(ThreadMXBean threads, boolean map, int sampleEvery) {
+		this.threads = threads;
+		this.map = map;
+		this.sampleEvery = Math.max(1, sampleEvery);
+	}
+
+	/**
+	 * Create in setup, on the thread that processes the records
+	 * @param conf
+	 * @param map true for a mapper, false for a reducer
+	 * @return a meter, or null if disabled or the JVM cannot measure thread allocation
+	 */
+	public static AllocationMeter fromConf(Configuration conf, boolean map) {
+		if (!conf.getBoolean(ENABLED_KEY, false)) {
+			return null;
+		}
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof ThreadMXBean) || !((ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+			return null;
+		}
+		ThreadMXBean threads = (ThreadMXBean) bean;
+		if (!threads.isThreadAllocatedMemoryEnabled()) {
+			threads.setThreadAllocatedMemoryEnabled(true);
+		}
+		return new AllocationMeter(threads, map, conf.getInt(SAMPLE_KEY, 100));
+	}
+
+	/**
+	 * Have the default PutSortReducer report allocation too. Call after the reducer has been chosen.
+	 * @param job
+	 * @throws IOException
+	 */
+	public static void configureJob(Job job) throws IOException {
+		if (!job.getConfiguration().getBoolean(ENABLED_KEY, false)) {
+			return;
+		}
+		TrackingPutSortReducer.configureJob(job);
+	}
+
+	/**
+	 * Call at the start of every map or reduce call
+	 */
+	public void tick() {
+		if (sampling) {
+			allocated += threads.getThreadAllocatedBytes(threadId) - sampleStart;
+			sampled++;
+			sampling = false;
+		}
+		if (++count % sampleEvery == 0) {
+			sampling = true;
+			sampleStart = threads.getThreadAllocatedBytes(threadId);
+		}
+	}
+
+	/**
+	 * Add the samples and GC time to the job counters; call once from cleanup
+	 */
+	public void report(TaskAttemptContext context) {
+		context.getCounter(map ? Counters.MAP_SAMPLED_RECORDS : Counters.REDUCE_SAMPLED_ROWS).increment(sampled);
+		context.getCounter(map ? Counters.MAP_SAMPLED_ALLOCATED_BYTES : Counters.REDUCE_SAMPLED_ALLOCATED_BYTES)
+				.increment(allocated);
+		context.getCounter(map ? Counters.MAP_GC_MILLIS : Counters.REDUCE_GC_MILLIS).increment(gcMillis() - gcStart);
+	}
+
+	private static long gcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += Math.max(0, gc.getCollectionTime());
+		}
+		return millis;
+	}
+}
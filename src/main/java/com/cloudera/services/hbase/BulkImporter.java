@@ -0,0 +1,261 @@
+package com.cloudera.services.hbase;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsAction;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.mapreduce.HFileOutputFormat2;
+import org.apache.hadoop.io.compress.SnappyCodec;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.Tool;
+
+/**
+ * Driver shared by the importers. It parses the arguments, sets up the HFile
+ * job with every optional stage, and then resumes, plans, streams, or runs the
+ * job and bulk loads its output:
+ *
+ * <pre>
+ * BulkImporter &lt;hbase-site.xml&gt; &lt;input&gt; &lt;output&gt;
+ * BulkImporter &lt;hbase-site.xml&gt; --resume &lt;output&gt;
+ * BulkImporter &lt;hbase-site.xml&gt; --plan &lt;input&gt;
+ * </pre>
+ *
+ * Each importer supplies its input format, its mapper and its columns, and
+ * declares which of the optional mapper features it implements; asking an
+ * importer for one it lacks fails before the job is submitted.
+ */
+public abstract class BulkImporter extends Configured implements Tool {
+
+	private final String tableName;
+
+	protected BulkImporter(String tableName) {
+		this.tableName = tableName;
+	}
+
+	/**
+	 * @return the column names filters refer to, or null if columns are referred to by index
+	 */
+	protected abstract String[] getColumnNames();
+
+	protected abstract int getColumnCount();
+
+	/**
+	 * Set the input format and any reader settings, such as column projection
+	 * and filter pushdown. The input path is already added.
+	 */
+	protected abstract void configureInput(Job job, Path input, FieldFilter filter) throws IOException;
+
+	@SuppressWarnings("rawtypes")
+	protected abstract Class<? extends Mapper> getMapperClass();
+
+	/**
+	 * @return the mapper writing {@link PackedRowWritable} output, or null if the importer has none
+	 */
+	@SuppressWarnings("rawtypes")
+	protected Class<? extends Mapper> getPackedMapperClass() {
+		return null;
+	}
+
+	/**
+	 * @return true if the mapper keys rows by the four natural key fields and
+	 *         can write them through {@link MultiTableOutput}
+	 */
+	protected boolean supportsMultiTable() {
+		return true;
+	}
+
+	/**
+	 * @return true if the mapper reads the {@link RowOperations} column
+	 */
+	protected boolean supportsRowOperations() {
+		return false;
+	}
+
+	/**
+	 * @return true if the input records are Writables {@link MapThreads} can copy
+	 */
+	protected boolean supportsMapThreads() {
+		return false;
+	}
+
+	public int run(String[] args) throws Exception {
+
+		if (args.length != 3) {
+			System.err.println("Usage: BulkImporter <hbase-site.xml> <input> <output>");
+			System.err.println("       BulkImporter <hbase-site.xml> " + BulkLoadManifest.RESUME_OPTION + " <output>");
+			System.err.println("       BulkImporter <hbase-site.xml> " + LoadPlanner.PLAN_OPTION + " <input>");
+			return -1;
+		}
+
+		//Hbase config
+		Configuration conf = HBaseConfiguration.create(getConf());
+		conf.addResource(new Path(args[0]));
+		FieldFilter filter = FieldFilter.fromConf(conf);
+		filter.check(getColumnNames(), getColumnCount());
+		checkSupported(conf);
+		MultiTableOutput tables = supportsMultiTable() ? MultiTableOutput.fromConf(conf, tableName) : null;
+		if (BulkLoadManifest.RESUME_OPTION.equals(args[1])) {
+			return BulkLoadManifest.resume(conf, new Path(args[2]), TableName.valueOf(tableName));
+		}
+		boolean plan = LoadPlanner.PLAN_OPTION.equals(args[1]);
+		Job job = new Job(conf, getClass().getSimpleName());
+		job.setJarByClass(getClass());
+
+		//input & output paths
+		Path input = new Path(args[plan ? 2 : 1]);
+		FileInputFormat.addInputPath(job, input);
+		boolean stream = !plan && StreamingOutputFormat.isSmall(conf, input);
+		//nothing is written to the output in plan mode, and no HFiles in stream mode
+		Path tmpPath = plan ? new Path(conf.get("hbase.fs.tmp.dir"))
+				: stream ? new Path(args[2]) : StagingDir.place(conf, new Path(args[2]));
+		FileOutputFormat.setOutputPath(job, tmpPath);
+
+		//input format settings
+		configureInput(job, input, filter);
+
+		//Map settings
+		boolean packed = conf.getBoolean(PackedRowWritable.ENABLED_KEY, false);
+		if (packed && (getPackedMapperClass() == null || tables != null || stream || RowOperations.isEnabled(conf)
+				|| conf.getBoolean(DedupBuffer.ENABLED_KEY, false))) {
+			System.out.println("Not using the packed shuffle: it does not support multi-table output, streaming,"
+					+ " row operations or deduplication, or " + getClass().getSimpleName());
+			packed = false;
+		}
+		job.setMapperClass(packed ? getPackedMapperClass() : getMapperClass());
+		if (supportsMapThreads()) {
+			MapThreads.configureJob(job);
+		}
+		job.setMapOutputKeyClass(ImmutableBytesWritable.class);
+		job.setMapOutputValueClass(Put.class);
+		job.setOutputFormatClass(HFileOutputFormat2.class);
+
+		//HFile settings
+		Connection connection = SharedConnection.acquire(conf);
+		Table table = connection.getTable(TableName.valueOf(tableName));
+		RegionLocator regionLocator = SplitPoints.locator(conf, connection, TableName.valueOf(tableName));
+		try {
+			HFileOutputFormat2.configureIncrementalLoad(job, table, regionLocator);
+			HFileOutputFormat2.setOutputPath(job, tmpPath);
+			HFileOutputFormat2.setCompressOutput(job, true);
+			HFileOutputFormat2.setOutputCompressorClass(job, SnappyCodec.class);
+			if (tables != null) {
+				tables.configureJob(job, connection);
+			}
+			if (packed) {
+				PackedRowWritable.configureJob(job);
+			}
+			MembershipFilter.configureJob(job);
+			AllocationMeter.configureJob(job);
+			LoadChecksums.configureJob(job);
+			RowOperations.configureJob(job);
+			if (!plan) {
+				ColumnDictionary.createTable(conf, connection);
+			}
+
+			if (stream) {
+				return StreamingOutputFormat.run(job, tableName);
+			}
+			if (plan) {
+				return new LoadPlanner(job, regionLocator).run();
+			}
+			ImportReport report = new ImportReport();
+			//kick off MR job
+			if (!job.waitForCompletion(true)) {
+				return 1;
+			}
+			MembershipFilter.merge(conf, tmpPath);
+			LoadChecksums.merge(job, tmpPath, tableName);
+
+			//change permissions so that HBase user can read it
+			FileSystem fs = FileSystem.get(conf);
+			report.jobFinished(job, fs, tmpPath);
+			StagingDir.reportCopy(conf, tmpPath, report);
+			FsPermission changedPermission = new FsPermission(FsAction.ALL, FsAction.ALL, FsAction.ALL);
+			fs.setPermission(tmpPath, changedPermission);
+			List<String> files = getAllFilePath(tmpPath, fs);
+			for (String file : files) {
+				fs.setPermission(new Path(file), changedPermission);
+				System.out.println("Changing permission for file " + file);
+			}
+
+			//bulk load hbase files, recording progress so a failed load can be resumed
+			if (tables != null) {
+				tables.load(conf, connection, fs, tmpPath);
+			} else {
+				BulkLoadManifest.create(fs, tmpPath, regionLocator, conf);
+				BulkLoadManifest.load(conf, connection, fs,
+						Collections.singletonMap(tmpPath, TableName.valueOf(tableName)));
+			}
+
+			report.loadFinished(conf);
+
+			//delete the hfiles
+			if (!conf.getBoolean(BulkLoadManifest.KEEP_OUTPUT_KEY, false)) {
+				fs.delete(tmpPath, true);
+			}
+			return 0;
+
+		} finally {
+			table.close();
+			regionLocator.close();
+			SharedConnection.release(connection);
+		}
+	}
+
+	/**
+	 * Fail fast on options the importer's mapper does not implement
+	 */
+	private void checkSupported(Configuration conf) {
+		String name = getClass().getSimpleName();
+		if (!supportsMultiTable() && (conf.getTrimmed(MultiTableOutput.TABLES_KEY) != null
+				|| conf.getTrimmed(MultiTableOutput.INDEX_KEY) != null
+				|| conf.getBoolean(MultiTableHFileOutputFormat.FAVORED_NODES_KEY, false))) {
+			throw new IllegalArgumentException(name + " does not support " + MultiTableOutput.TABLES_KEY + ", "
+					+ MultiTableOutput.INDEX_KEY + " or " + MultiTableHFileOutputFormat.FAVORED_NODES_KEY);
+		}
+		if (!supportsRowOperations() && RowOperations.isEnabled(conf)) {
+			throw new IllegalArgumentException(name + " does not support " + RowOperations.ENABLED_KEY);
+		}
+	}
+
+	/***
+	 * Given a path, list all folders and files
+	 * @param filePath
+	 * @param fs
+	 * @return
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public static List<String> getAllFilePath(Path filePath, FileSystem fs) throws FileNotFoundException, IOException {
+	    List<String> fileList = new ArrayList<String>();
+	    FileStatus[] fileStatus = fs.listStatus(filePath);
+	    for (FileStatus fileStat : fileStatus) {
+	        if (fileStat.isDirectory()) {
+	        	fileList.add(fileStat.getPath().toString());
+	            fileList.addAll(getAllFilePath(fileStat.getPath(), fs));
+	        } else {
+	            fileList.add(fileStat.getPath().toString());
+	        }
+	    }
+	    return fileList;
+	}
+}
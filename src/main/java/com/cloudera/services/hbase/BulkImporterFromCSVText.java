@@ -1,43 +1,22 @@
 package com.cloudera.services.hbase;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
 
-import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.conf.Configured;
-import org.apache.hadoop.fs.FileStatus;
-import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.fs.permission.FsAction;
-import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.hbase.HBaseConfiguration;
-import org.apache.hadoop.hbase.TableName;
-import org.apache.hadoop.hbase.client.Admin;
-import org.apache.hadoop.hbase.client.Connection;
-import org.apache.hadoop.hbase.client.ConnectionFactory;
-import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.Put;
-import org.apache.hadoop.hbase.client.RegionLocator;
-import org.apache.hadoop.hbase.client.Table;
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
-import org.apache.hadoop.hbase.mapreduce.HFileOutputFormat2;
-import org.apache.hadoop.hbase.mapreduce.LoadIncrementalHFiles;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
-import org.apache.hadoop.io.compress.SnappyCodec;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
-import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
-import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
-import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 
 
-public class BulkImporterFromCSVText extends Configured implements Tool {
+public class BulkImporterFromCSVText extends BulkImporter {
 
 	static final String TABLE_NAME = "qualys";
 	static final int COLUMN_COUNT = 9;
@@ -47,120 +26,200 @@ public class BulkImporterFromCSVText extends Configured implements Tool {
 		static final byte[] COLUMN_FAMILY_CURRENT = Bytes.toBytes("c");
 		static final byte[] COLUMN_FAMILY_HISTORY = Bytes.toBytes("h");
 
+		private DedupBuffer dedup;
+		private Md5Cache md5;
+		private AllocationMeter meter;
+		private ColumnDictionary dictionary;
+		private MultiTableOutput tables;
+		private boolean operations;
+		private FieldFilter filter;
+		private boolean[] projection;
+
+		@Override
+		protected void setup(Context context) throws IOException {
+			dedup = DedupBuffer.fromConf(context.getConfiguration());
+			md5 = Md5Cache.fromConf(context.getConfiguration());
+			meter = AllocationMeter.fromConf(context.getConfiguration(), true);
+			dictionary = ColumnDictionary.fromConf(context.getConfiguration(), TABLE_NAME);
+			tables = MultiTableOutput.fromConf(context.getConfiguration());
+			operations = RowOperations.isEnabled(context.getConfiguration());
+			filter = FieldFilter.fromConf(context.getConfiguration());
+			projection = filter.projection(null, COLUMN_COUNT);
+		}
+
 		@Override
 		public void map(LongWritable key, Text value, Context context)
 				throws IOException, InterruptedException {
+			if (meter != null) {
+				meter.tick();
+			}
 			
 			String[] words = value.toString().split(",");
-			if (words.length == COLUMN_COUNT) {
+			if (words.length == (operations ? COLUMN_COUNT + 1 : COLUMN_COUNT)) {
 				
-				byte[] rowKey = RowKeyConverter.makeRowKey(words[0].getBytes(), words[1].getBytes(),
+				// the filter and dictionary apply to upserts only, a delete always reaches the table
+				boolean delete = operations && RowOperations.isDelete(words[COLUMN_COUNT]);
+				if (!delete && !filter.matches(null, words)) {
+					return;
+				}
+				byte[] rowKey = RowKeyConverter.makeRowKey(md5, words[0].getBytes(), words[1].getBytes(),
 						words[2].getBytes(), words[3].getBytes());
 
 				Put p = new Put(rowKey);
-				for (int i = 0; i < words.length; i++) {
+				for (int i = 0; i < COLUMN_COUNT; i++) {
 					//TO-DO add a column name
-					if(words[i] != null)
+					if(words[i] != null && (projection == null || projection[i]))
 					p.addColumn(COLUMN_FAMILY_CURRENT, Bytes.toBytes(i), words[i].getBytes());
 				}
 
-				context.write(new ImmutableBytesWritable(rowKey), p);
+				if (operations) {
+					p = RowOperations.apply(words[COLUMN_COUNT], p);
+					if (p == null) {
+						System.out.println("skipping record " + value.toString());
+						return;
+					}
+				}
+				if (dictionary != null && !delete) {
+					dictionary.encode(p);
+				}
+				if (tables != null) {
+					tables.write(new byte[][] { words[0].getBytes(), words[1].getBytes(),
+								words[2].getBytes(), words[3].getBytes() },
+							p, md5, dedup, context);
+				} else if (dedup != null) {
+					dedup.add(new ImmutableBytesWritable(rowKey), p, context);
+				} else {
+					context.write(new ImmutableBytesWritable(rowKey), p);
+				}
 			} else {
 				System.out.println("skipping record " + value.toString());
 			}
 		}
+
+		@Override
+		protected void cleanup(Context context) throws IOException, InterruptedException {
+			if (dedup != null) {
+				dedup.flush(context);
+			}
+			if (md5 != null) {
+				md5.report(context);
+			}
+			if (meter != null) {
+				meter.report(context);
+			}
+			if (dictionary != null) {
+				dictionary.close();
+			}
+		}
 	}
 
-	public int run(String[] args) throws Exception {
-		
-		if (args.length != 3) {
-			System.err.println("Usage: BulkImporter <hbase-site.xml> <input> <output>");
-			return -1;
+	/**
+	 * Same parsing as {@link HBaseMapper}, but emits a {@link PackedRowWritable}
+	 * per record for the compact shuffle enabled by bulkload.shuffle.packed.
+	 */
+	static class PackedRowMapper extends
+			Mapper<LongWritable, Text, PackedRowWritable, NullWritable> {
+
+		private final PackedRowWritable row = new PackedRowWritable();
+		private Md5Cache md5;
+		private AllocationMeter meter;
+		private ColumnDictionary dictionary;
+		private FieldFilter filter;
+		private boolean[] projection;
+
+		@Override
+		protected void setup(Context context) throws IOException {
+			md5 = Md5Cache.fromConf(context.getConfiguration());
+			meter = AllocationMeter.fromConf(context.getConfiguration(), true);
+			dictionary = ColumnDictionary.fromConf(context.getConfiguration(), TABLE_NAME);
+			filter = FieldFilter.fromConf(context.getConfiguration());
+			projection = filter.projection(null, COLUMN_COUNT);
 		}
-		
-		//Hbase config
-		Configuration conf = HBaseConfiguration.create();
-		conf.addResource(new Path(args[0]));
-		Job job = new Job(conf, getClass().getSimpleName());
-		job.setJarByClass(getClass());
-		
-		//input & output paths
-		Path input = new Path(args[1]);
-		FileInputFormat.addInputPath(job, input);
-		Path tmpPath = new Path(args[2]);
-		FileOutputFormat.setOutputPath(job, tmpPath);
-		
-		//input format settings
-		job.setInputFormatClass(TextInputFormat.class);
-		
-		//Map settings
-		job.setMapperClass(HBaseMapper.class);
-		job.setMapOutputKeyClass(ImmutableBytesWritable.class);
-		job.setMapOutputValueClass(Put.class);
-		job.setOutputFormatClass(HFileOutputFormat2.class);
-
-		//HFile settings
-		Connection connection = ConnectionFactory.createConnection(conf);
-		Table table = connection.getTable(TableName.valueOf(TABLE_NAME));
-		Admin admin = connection.getAdmin();
-		RegionLocator regionLocator = connection.getRegionLocator(TableName.valueOf(TABLE_NAME));
-		try {
-			  HFileOutputFormat2.configureIncrementalLoad(job, table, regionLocator);
-			  HFileOutputFormat2.setOutputPath(job, tmpPath);
-			  HFileOutputFormat2.setCompressOutput(job, true);
-			  HFileOutputFormat2.setOutputCompressorClass(job, SnappyCodec.class);
-			
-			  //kick off MR job
-			if (!job.waitForCompletion(true)) {
-				return 1;
-			}
-			
-			//change permissions so that HBase user can read it
-			FileSystem fs =  FileSystem.get(conf);
-			FsPermission changedPermission=new FsPermission(FsAction.ALL,FsAction.ALL,FsAction.ALL);
-			fs.setPermission(tmpPath, changedPermission);
-			List<String> files = getAllFilePath(tmpPath, fs);
-			for (String file : files) {
-				fs.setPermission(new Path(file), changedPermission);
-				System.out.println("Changing permission for file " + file);
+
+		@Override
+		public void map(LongWritable key, Text value, Context context)
+				throws IOException, InterruptedException {
+			if (meter != null) {
+				meter.tick();
 			}
 
-			//bulk load hbase files
-			LoadIncrementalHFiles loader = new LoadIncrementalHFiles(conf);
-			loader.doBulkLoad(tmpPath, (HTable) table);
+			String[] words = value.toString().split(",");
+			if (words.length == COLUMN_COUNT) {
 
-			//delete the hfiles
-			FileSystem.get(conf).delete(tmpPath, true);	
-			return 0;
-			
-		} finally {
-			table.close();
-			admin.close();
+				if (!filter.matches(null, words)) {
+					return;
+				}
+				byte[] rowKey = RowKeyConverter.makeRowKey(md5, words[0].getBytes(), words[1].getBytes(),
+						words[2].getBytes(), words[3].getBytes());
+
+				row.set(rowKey);
+				for (int i = 0; i < words.length; i++) {
+					if(words[i] != null && (projection == null || projection[i]))
+					row.addCell(i, dictionary != null
+							? dictionary.encode(Bytes.toBytes(i), words[i].getBytes()) : words[i].getBytes());
+				}
+				context.write(row, NullWritable.get());
+			} else {
+				System.out.println("skipping record " + value.toString());
+			}
+		}
+
+		@Override
+		protected void cleanup(Context context) throws IOException {
+			if (md5 != null) {
+				md5.report(context);
+			}
+			if (meter != null) {
+				meter.report(context);
+			}
+			if (dictionary != null) {
+				dictionary.close();
+			}
 		}
 	}
-	
-	/***
-	 * Given a path, list all folders and files
-	 * @param filePath
-	 * @param fs
-	 * @return
-	 * @throws FileNotFoundException
-	 * @throws IOException
-	 */
-	public static List<String> getAllFilePath(Path filePath, FileSystem fs) throws FileNotFoundException, IOException {
-	    List<String> fileList = new ArrayList<String>();
-	    FileStatus[] fileStatus = fs.listStatus(filePath);
-	    for (FileStatus fileStat : fileStatus) {
-	        if (fileStat.isDirectory()) {
-	        	fileList.add(fileStat.getPath().toString());
-	            fileList.addAll(getAllFilePath(fileStat.getPath(), fs));
-	        } else {
-	            fileList.add(fileStat.getPath().toString());
-	        }
-	    }
-	    return fileList;
+
+	public BulkImporterFromCSVText() {
+		super(TABLE_NAME);
+	}
+
+	@Override
+	protected String[] getColumnNames() {
+		return null;
+	}
+
+	@Override
+	protected int getColumnCount() {
+		return COLUMN_COUNT;
+	}
+
+	@Override
+	protected void configureInput(Job job, Path input, FieldFilter filter) throws IOException {
+		job.setInputFormatClass(TextInputFormat.class);
+		InputRechunker.configureSplits(job, input);
 	}
 
+	@Override
+	@SuppressWarnings("rawtypes")
+	protected Class<? extends Mapper> getMapperClass() {
+		return HBaseMapper.class;
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	protected Class<? extends Mapper> getPackedMapperClass() {
+		return PackedRowMapper.class;
+	}
+
+	@Override
+	protected boolean supportsRowOperations() {
+		return true;
+	}
+
+	@Override
+	protected boolean supportsMapThreads() {
+		return true;
+	}
+	
 	public static void main(String[] args) throws Exception {
 		int exitCode = ToolRunner.run(HBaseConfiguration.create(),
 				new BulkImporterFromCSVText(), args);
@@ -0,0 +1,223 @@
+package com.cloudera.services.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.Schema.Field;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hive.ql.io.orc.OrcNewInputFormat;
+import org.apache.hadoop.hive.ql.io.orc.OrcStruct;
+import org.apache.hadoop.hive.ql.io.sarg.SearchArgument;
+import org.apache.hadoop.hive.ql.io.sarg.SearchArgumentFactory;
+import org.apache.hadoop.hive.serde2.ColumnProjectionUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.typeinfo.StructTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoUtils;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * Loads ORC files whose columns include those of {@link PWData}. The file
+ * schema defaults to exactly those columns and can be overridden with
+ * <code>bulkload.orc.schema</code> for wider upstream files. Only the mapped
+ * columns are decoded, and {@link FieldFilter} predicates are handed to the
+ * ORC reader as a search argument so stripes and row groups are skipped.
+ */
+public class BulkImporterFromOrc extends BulkImporter {
+
+	static final String TABLE_NAME = "qualys";
+	static final String[] COLUMNS = columnNames();
+	static final String ORC_SCHEMA_KEY = "bulkload.orc.schema";
+
+	static class HBaseMapper extends
+			Mapper<NullWritable, OrcStruct, ImmutableBytesWritable, Put> {
+		static final byte[] COLUMN_FAMILY_CURRENT = Bytes.toBytes("c");
+		static final byte[] COLUMN_FAMILY_HISTORY = Bytes.toBytes("h");
+
+		private FieldFilter filter;
+		private DedupBuffer dedup;
+		private Md5Cache md5;
+		private AllocationMeter meter;
+		private ColumnDictionary dictionary;
+		private MultiTableOutput tables;
+		private boolean[] projection;
+		private StructObjectInspector inspector;
+		private StructField[] fields;
+
+		@Override
+		protected void setup(Context context) throws IOException {
+			Configuration conf = context.getConfiguration();
+			filter = FieldFilter.fromConf(conf);
+			projection = filter.projection(COLUMNS, COLUMNS.length);
+			dedup = DedupBuffer.fromConf(conf);
+			md5 = Md5Cache.fromConf(conf);
+			meter = AllocationMeter.fromConf(conf, true);
+			dictionary = ColumnDictionary.fromConf(conf, TABLE_NAME);
+			tables = MultiTableOutput.fromConf(conf);
+			inspector = (StructObjectInspector) OrcStruct.createObjectInspector(
+					TypeInfoUtils.getTypeInfoFromTypeString(conf.get(ORC_SCHEMA_KEY, defaultSchema())));
+			fields = new StructField[COLUMNS.length];
+			for (int i = 0; i < COLUMNS.length; i++) {
+				fields[i] = inspector.getStructFieldRef(COLUMNS[i]);
+			}
+		}
+
+		@Override
+		public void map(NullWritable key, OrcStruct value, Context context)
+				throws IOException, InterruptedException {
+			if (meter != null) {
+				meter.tick();
+			}
+
+			byte[][] words = new byte[COLUMNS.length][];
+			for (int i = 0; i < COLUMNS.length; i++) {
+				Object field = inspector.getStructFieldData(value, fields[i]);
+				if (field != null)
+					words[i] = field.toString().getBytes();
+			}
+
+			if (words[0] == null || words[1] == null || words[2] == null || words[3] == null) {
+				System.out.println("skipping record " + value.toString());
+				return;
+			}
+			//the search argument only skips stripes and row groups, re-check the row itself
+			if (!filter.matches(COLUMNS, words)) {
+				return;
+			}
+
+			byte[] rowKey = RowKeyConverter.makeRowKey(md5, words[0], words[1], words[2], words[3]);
+			Put p = new Put(rowKey);
+			for (int i = 0; i < words.length; i++) {
+				//TO-DO add a column name
+				if(words[i] != null && (projection == null || projection[i]))
+				p.addColumn(COLUMN_FAMILY_CURRENT, Bytes.toBytes(i), words[i]);
+			}
+			if (dictionary != null) {
+				dictionary.encode(p);
+			}
+			if (tables != null) {
+				tables.write(new byte[][] { words[0], words[1], words[2], words[3] },
+						p, md5, dedup, context);
+			} else if (dedup != null) {
+				dedup.add(new ImmutableBytesWritable(rowKey), p, context);
+			} else {
+				context.write(new ImmutableBytesWritable(rowKey), p);
+			}
+		}
+
+		@Override
+		protected void cleanup(Context context) throws IOException, InterruptedException {
+			if (dedup != null) {
+				dedup.flush(context);
+			}
+			if (md5 != null) {
+				md5.report(context);
+			}
+			if (meter != null) {
+				meter.report(context);
+			}
+			if (dictionary != null) {
+				dictionary.close();
+			}
+		}
+	}
+
+	public BulkImporterFromOrc() {
+		super(TABLE_NAME);
+	}
+
+	@Override
+	protected String[] getColumnNames() {
+		return COLUMNS;
+	}
+
+	@Override
+	protected int getColumnCount() {
+		return COLUMNS.length;
+	}
+
+	@Override
+	protected void configureInput(Job job, Path input, FieldFilter filter) throws IOException {
+		// column projection and predicate pushdown
+		job.setInputFormatClass(OrcNewInputFormat.class);
+		configureReader(job.getConfiguration(), filter);
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	protected Class<? extends Mapper> getMapperClass() {
+		return HBaseMapper.class;
+	}
+
+	/**
+	 * Restrict the ORC reader to the mapped columns and push the filter down
+	 * as a search argument
+	 * @param conf
+	 * @param filter
+	 */
+	static void configureReader(Configuration conf, FieldFilter filter) {
+		StructTypeInfo schema = (StructTypeInfo) TypeInfoUtils.getTypeInfoFromTypeString(
+				conf.get(ORC_SCHEMA_KEY, defaultSchema()));
+		List<String> fileColumns = schema.getAllStructFieldNames();
+		List<String> mapped = Arrays.asList(COLUMNS);
+		if (!fileColumns.containsAll(mapped)) {
+			throw new IllegalArgumentException(ORC_SCHEMA_KEY + " must contain all of " + mapped);
+		}
+
+		List<Integer> ids = new ArrayList<Integer>();
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < fileColumns.size(); i++) {
+			if (mapped.contains(fileColumns.get(i))) {
+				ids.add(i);
+				names.add(fileColumns.get(i));
+			}
+		}
+		ColumnProjectionUtils.appendReadColumns(conf, ids, names);
+
+		if (!filter.getPredicates().isEmpty()) {
+			SearchArgument.Builder sarg = SearchArgumentFactory.newBuilder().startAnd();
+			for (Map.Entry<String, String> e : filter.getPredicates().entrySet()) {
+				if (!mapped.contains(e.getKey())) {
+					throw new IllegalArgumentException("Cannot filter on unmapped column " + e.getKey());
+				}
+				sarg.equals(e.getKey(), e.getValue());
+			}
+			conf.set("sarg.pushdown", sarg.end().build().toKryo());
+			conf.setBoolean("hive.optimize.index.filter", true);
+		}
+	}
+
+	static String[] columnNames() {
+		List<Field> flds = PWData.getClassSchema().getFields();
+		String[] names = new String[flds.size()];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = flds.get(i).name();
+		}
+		return names;
+	}
+
+	static String defaultSchema() {
+		StringBuilder schema = new StringBuilder("struct<");
+		for (int i = 0; i < COLUMNS.length; i++) {
+			schema.append(i == 0 ? "" : ",").append(COLUMNS[i]).append(":string");
+		}
+		return schema.append(">").toString();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int exitCode = ToolRunner.run(HBaseConfiguration.create(),
+				new BulkImporterFromOrc(), args);
+		System.exit(exitCode);
+	}
+}
@@ -0,0 +1,206 @@
+package com.cloudera.services.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.avro.Schema.Field;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.util.ToolRunner;
+
+import parquet.example.data.Group;
+import parquet.filter2.predicate.FilterApi;
+import parquet.filter2.predicate.FilterPredicate;
+import parquet.hadoop.ParquetInputFormat;
+import parquet.hadoop.example.GroupReadSupport;
+import parquet.io.api.Binary;
+import parquet.schema.MessageType;
+import parquet.schema.Type;
+
+/**
+ * Loads Parquet files laid out like {@link PWData}. Only the mapped columns are
+ * read, and any {@link FieldFilter} predicates are pushed down to the Parquet
+ * reader so row groups and records that cannot match are skipped.
+ */
+public class BulkImporterFromParquet extends BulkImporter {
+
+	static final String TABLE_NAME = "qualys";
+	static final String[] COLUMNS = columnNames();
+
+	static class HBaseMapper extends
+			Mapper<Void, Group, ImmutableBytesWritable, Put> {
+		static final byte[] COLUMN_FAMILY_CURRENT = Bytes.toBytes("c");
+		static final byte[] COLUMN_FAMILY_HISTORY = Bytes.toBytes("h");
+
+		private FieldFilter filter;
+		private DedupBuffer dedup;
+		private Md5Cache md5;
+		private AllocationMeter meter;
+		private ColumnDictionary dictionary;
+		private MultiTableOutput tables;
+		private boolean[] projection;
+
+		@Override
+		protected void setup(Context context) throws IOException {
+			filter = FieldFilter.fromConf(context.getConfiguration());
+			projection = filter.projection(COLUMNS, COLUMNS.length);
+			dedup = DedupBuffer.fromConf(context.getConfiguration());
+			md5 = Md5Cache.fromConf(context.getConfiguration());
+			meter = AllocationMeter.fromConf(context.getConfiguration(), true);
+			dictionary = ColumnDictionary.fromConf(context.getConfiguration(), TABLE_NAME);
+			tables = MultiTableOutput.fromConf(context.getConfiguration());
+		}
+
+		@Override
+		public void map(Void key, Group value, Context context)
+				throws IOException, InterruptedException {
+			if (meter != null) {
+				meter.tick();
+			}
+
+			byte[][] words = new byte[COLUMNS.length][];
+			for (int i = 0; i < COLUMNS.length; i++) {
+				if (value.getType().containsField(COLUMNS[i])) {
+					int field = value.getType().getFieldIndex(COLUMNS[i]);
+					if (value.getFieldRepetitionCount(field) > 0)
+						words[i] = value.getValueToString(field, 0).getBytes();
+				}
+			}
+
+			if (words[0] == null || words[1] == null || words[2] == null || words[3] == null) {
+				System.out.println("skipping record " + value.toString());
+				return;
+			}
+			//pushdown may only prune whole row groups, so re-check the row itself
+			if (!filter.matches(COLUMNS, words)) {
+				return;
+			}
+
+			byte[] rowKey = RowKeyConverter.makeRowKey(md5, words[0], words[1], words[2], words[3]);
+			Put p = new Put(rowKey);
+			for (int i = 0; i < words.length; i++) {
+				//TO-DO add a column name
+				if(words[i] != null && (projection == null || projection[i]))
+				p.addColumn(COLUMN_FAMILY_CURRENT, Bytes.toBytes(i), words[i]);
+			}
+			if (dictionary != null) {
+				dictionary.encode(p);
+			}
+			if (tables != null) {
+				tables.write(new byte[][] { words[0], words[1], words[2], words[3] },
+						p, md5, dedup, context);
+			} else if (dedup != null) {
+				dedup.add(new ImmutableBytesWritable(rowKey), p, context);
+			} else {
+				context.write(new ImmutableBytesWritable(rowKey), p);
+			}
+		}
+
+		@Override
+		protected void cleanup(Context context) throws IOException, InterruptedException {
+			if (dedup != null) {
+				dedup.flush(context);
+			}
+			if (md5 != null) {
+				md5.report(context);
+			}
+			if (meter != null) {
+				meter.report(context);
+			}
+			if (dictionary != null) {
+				dictionary.close();
+			}
+		}
+	}
+
+	/**
+	 * Requests only the mapped columns that exist in each file's schema, so
+	 * the remaining column chunks are never read from HDFS.
+	 */
+	public static class ProjectedReadSupport extends GroupReadSupport {
+
+		@Override
+		public ReadContext init(Configuration configuration,
+				Map<String, String> keyValueMetaData, MessageType fileSchema) {
+			List<String> mapped = Arrays.asList(COLUMNS);
+			List<Type> projected = new ArrayList<Type>();
+			for (Type field : fileSchema.getFields()) {
+				if (mapped.contains(field.getName())) {
+					projected.add(field);
+				}
+			}
+			return new ReadContext(new MessageType(fileSchema.getName(), projected));
+		}
+	}
+
+	public BulkImporterFromParquet() {
+		super(TABLE_NAME);
+	}
+
+	@Override
+	protected String[] getColumnNames() {
+		return COLUMNS;
+	}
+
+	@Override
+	protected int getColumnCount() {
+		return COLUMNS.length;
+	}
+
+	@Override
+	protected void configureInput(Job job, Path input, FieldFilter filter) throws IOException {
+		// column projection and predicate pushdown
+		job.setInputFormatClass(ParquetInputFormat.class);
+		ParquetInputFormat.setReadSupportClass(job, ProjectedReadSupport.class);
+		if (!filter.getPredicates().isEmpty()) {
+			ParquetInputFormat.setFilterPredicate(job.getConfiguration(), toPredicate(filter));
+		}
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	protected Class<? extends Mapper> getMapperClass() {
+		return HBaseMapper.class;
+	}
+
+	/**
+	 * Translate the configured equality predicates into a Parquet filter
+	 * @param filter
+	 * @return
+	 */
+	static FilterPredicate toPredicate(FieldFilter filter) {
+		FilterPredicate predicate = null;
+		for (Map.Entry<String, String> e : filter.getPredicates().entrySet()) {
+			if (!Arrays.asList(COLUMNS).contains(e.getKey())) {
+				throw new IllegalArgumentException("Cannot filter on unmapped column " + e.getKey());
+			}
+			FilterPredicate eq = FilterApi.eq(FilterApi.binaryColumn(e.getKey()), Binary.fromString(e.getValue()));
+			predicate = predicate == null ? eq : FilterApi.and(predicate, eq);
+		}
+		return predicate;
+	}
+
+	static String[] columnNames() {
+		List<Field> flds = PWData.getClassSchema().getFields();
+		String[] names = new String[flds.size()];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = flds.get(i).name();
+		}
+		return names;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int exitCode = ToolRunner.run(HBaseConfiguration.create(),
+				new BulkImporterFromParquet(), args);
+		System.exit(exitCode);
+	}
+}
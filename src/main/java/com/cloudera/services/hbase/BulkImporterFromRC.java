@@ -1,42 +1,21 @@
 package com.cloudera.services.hbase;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
-import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.conf.Configured;
-import org.apache.hadoop.fs.FileStatus;
-import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.fs.permission.FsAction;
-import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.hbase.HBaseConfiguration;
-import org.apache.hadoop.hbase.TableName;
-import org.apache.hadoop.hbase.client.Admin;
-import org.apache.hadoop.hbase.client.Connection;
-import org.apache.hadoop.hbase.client.ConnectionFactory;
-import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.Put;
-import org.apache.hadoop.hbase.client.RegionLocator;
-import org.apache.hadoop.hbase.client.Table;
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
-import org.apache.hadoop.hbase.mapreduce.HFileOutputFormat2;
-import org.apache.hadoop.hbase.mapreduce.LoadIncrementalHFiles;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.hive.serde2.columnar.BytesRefArrayWritable;
 import org.apache.hadoop.hive.serde2.columnar.BytesRefWritable;
-import org.apache.hadoop.io.compress.SnappyCodec;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
-import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
-import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.hive.hcatalog.rcfile.RCFileMapReduceInputFormat;
 
-public class BulkImporterFromRC extends Configured implements Tool {
+public class BulkImporterFromRC extends BulkImporter {
 
 	static final String TABLE_NAME = "qualys";
 	static final int COLUMN_COUNT = 9;
@@ -46,122 +25,121 @@ public class BulkImporterFromRC extends Configured implements Tool {
 		static final byte[] COLUMN_FAMILY_CURRENT = Bytes.toBytes("c");
 		static final byte[] COLUMN_FAMILY_HISTORY = Bytes.toBytes("h");
 
+		private DedupBuffer dedup;
+		private Md5Cache md5;
+		private AllocationMeter meter;
+		private ColumnDictionary dictionary;
+		private MultiTableOutput tables;
+		private FieldFilter filter;
+		private boolean[] projection;
+
+		@Override
+		protected void setup(Context context) throws IOException {
+			dedup = DedupBuffer.fromConf(context.getConfiguration());
+			md5 = Md5Cache.fromConf(context.getConfiguration());
+			meter = AllocationMeter.fromConf(context.getConfiguration(), true);
+			dictionary = ColumnDictionary.fromConf(context.getConfiguration(), TABLE_NAME);
+			tables = MultiTableOutput.fromConf(context.getConfiguration());
+			filter = FieldFilter.fromConf(context.getConfiguration());
+			projection = filter.projection(null, COLUMN_COUNT);
+		}
+
 		@Override
 		public void map(Object key, BytesRefArrayWritable value, Context context)
 				throws IOException, InterruptedException {
+			if (meter != null) {
+				meter.tick();
+			}
 
 			if (value.size() == COLUMN_COUNT) {
-				byte[] rowKey = RowKeyConverter.makeRowKey(value.get(1)
-						.getData(), value.get(3).getData(), value.get(4)
-						.getData(), value.get(20).getData());
+				// a column's bytes are a slice of a buffer shared by the whole row
+				byte[][] values = new byte[COLUMN_COUNT][];
+				for (int i = 0; i < COLUMN_COUNT; i++) {
+					values[i] = bytes(value.get(i));
+				}
+				if (!filter.isEmpty() && !filter.matches(null, values)) {
+					return;
+				}
+				// the key fields of the other importers, so every format yields the same row keys
+				byte[][] keyFields = { values[0], values[1], values[2], values[3] };
+				byte[] rowKey = RowKeyConverter.makeRowKey(md5, keyFields[0], keyFields[1],
+						keyFields[2], keyFields[3]);
 
 				Put p = new Put(rowKey);
 
-				for (int i = 0; i < value.size(); i++) {
-					BytesRefWritable v = value.get(i);
+				for (int i = 0; i < values.length; i++) {
 					//TO-DO add a column name
-					p.addColumn(COLUMN_FAMILY_CURRENT, Bytes.toBytes(i), v.getData());
+					if (projection == null || projection[i])
+					p.addColumn(COLUMN_FAMILY_CURRENT, Bytes.toBytes(i), values[i]);
 				}
 
-				context.write(new ImmutableBytesWritable(rowKey), p);
+				if (dictionary != null) {
+					dictionary.encode(p);
+				}
+				if (tables != null) {
+					tables.write(keyFields, p, md5, dedup, context);
+				} else if (dedup != null) {
+					dedup.add(new ImmutableBytesWritable(rowKey), p, context);
+				} else {
+					context.write(new ImmutableBytesWritable(rowKey), p);
+				}
 				
 			} else {
 				System.out.println("skipping record " + value.get(1).toString());
 			}
 		}
-	}
 
-	public int run(String[] args) throws Exception {
-		
-		if (args.length != 3) {
-			System.err.println("Usage: BulkImporter <hbase-site.xml> <input> <output>");
-			return -1;
+		private static byte[] bytes(BytesRefWritable v) throws IOException {
+			return Arrays.copyOfRange(v.getData(), v.getStart(), v.getStart() + v.getLength());
 		}
-		
-		//Hbase config
-		Configuration conf = HBaseConfiguration.create();
-		conf.addResource(new Path(args[0]));
-		Job job = new Job(conf, getClass().getSimpleName());
-		job.setJarByClass(getClass());
-		
-		//input & output paths
-		Path input = new Path(args[1]);
-		FileInputFormat.addInputPath(job, input);
-		Path tmpPath = new Path(args[2]);
-		FileOutputFormat.setOutputPath(job, tmpPath);
-		
-		//input format settings
-		job.setInputFormatClass(RCFileMapReduceInputFormat.class);
-		RCFileMapReduceInputFormat.addInputPath(job, input);
-		
-		//Map settings
-		job.setMapperClass(HBaseMapper.class);
-		job.setMapOutputKeyClass(ImmutableBytesWritable.class);
-		job.setMapOutputValueClass(Put.class);
-		job.setOutputFormatClass(HFileOutputFormat2.class);
-
-		//HFile settings
-		Connection connection = ConnectionFactory.createConnection(conf);
-		Table table = connection.getTable(TableName.valueOf(TABLE_NAME));
-		Admin admin = connection.getAdmin();
-		RegionLocator regionLocator = connection.getRegionLocator(TableName.valueOf(TABLE_NAME));
-		try {
-			  HFileOutputFormat2.configureIncrementalLoad(job, table, regionLocator);
-			  HFileOutputFormat2.setOutputPath(job, tmpPath);
-			  HFileOutputFormat2.setCompressOutput(job, true);
-			  HFileOutputFormat2.setOutputCompressorClass(job, SnappyCodec.class);
-			
-			if (!job.waitForCompletion(true)) {
-				return 1;
-			}
 
-			//change permissions so that HBase user can read it
-			FileSystem fs =  FileSystem.get(conf);
-			FsPermission changedPermission=new FsPermission(FsAction.ALL,FsAction.ALL,FsAction.ALL);
-			fs.setPermission(tmpPath, changedPermission);
-			List<String> files = getAllFilePath(tmpPath, fs);
-			for (String file : files) {
-				fs.setPermission(new Path(file), changedPermission);
-				System.out.println("Changing permission for file " + file);
+		@Override
+		protected void cleanup(Context context) throws IOException, InterruptedException {
+			if (dedup != null) {
+				dedup.flush(context);
+			}
+			if (md5 != null) {
+				md5.report(context);
+			}
+			if (meter != null) {
+				meter.report(context);
+			}
+			if (dictionary != null) {
+				dictionary.close();
 			}
-			
-			//bulk load hbase files
-			LoadIncrementalHFiles loader = new LoadIncrementalHFiles(conf);
-			loader.doBulkLoad(tmpPath, (HTable) table);
-
-			//delete the hfiles
-			FileSystem.get(conf).delete(tmpPath, true);
-			
-			return 0;
-			
-		} finally {
-			table.close();
-			admin.close();
 		}
 	}
-	
-	/***
-	 * Given a path, list all folders and files
-	 * @param filePath
-	 * @param fs
-	 * @return
-	 * @throws FileNotFoundException
-	 * @throws IOException
-	 */
-	public static List<String> getAllFilePath(Path filePath, FileSystem fs) throws FileNotFoundException, IOException {
-	    List<String> fileList = new ArrayList<String>();
-	    FileStatus[] fileStatus = fs.listStatus(filePath);
-	    for (FileStatus fileStat : fileStatus) {
-	        if (fileStat.isDirectory()) {
-	        	fileList.add(fileStat.getPath().toString());
-	            fileList.addAll(getAllFilePath(fileStat.getPath(), fs));
-	        } else {
-	            fileList.add(fileStat.getPath().toString());
-	        }
-	    }
-	    return fileList;
+
+	public BulkImporterFromRC() {
+		super(TABLE_NAME);
+	}
+
+	@Override
+	protected String[] getColumnNames() {
+		return null;
+	}
+
+	@Override
+	protected int getColumnCount() {
+		return COLUMN_COUNT;
 	}
 
+	@Override
+	protected void configureInput(Job job, Path input, FieldFilter filter) throws IOException {
+		job.setInputFormatClass(RCFileMapReduceInputFormat.class);
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	protected Class<? extends Mapper> getMapperClass() {
+		return HBaseMapper.class;
+	}
+
+	@Override
+	protected boolean supportsMapThreads() {
+		return true;
+	}
+	
 	public static void main(String[] args) throws Exception {
 		int exitCode = ToolRunner.run(HBaseConfiguration.create(),
 				new BulkImporterFromRC(), args);
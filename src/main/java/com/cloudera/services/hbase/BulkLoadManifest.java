@@ -0,0 +1,496 @@
+package com.cloudera.services.hbase;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsAction;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.io.hfile.CacheConfig;
+import org.apache.hadoop.hbase.io.hfile.HFile;
+import org.apache.hadoop.hbase.mapreduce.LoadIncrementalHFiles;
+
+/**
+ * Persisted list of the HFiles an import generated, with the region each one
+ * targets and whether it has been loaded. Files are bulk loaded in batches of
+ * regions and the manifest is rewritten after every batch, so a load that
+ * fails partway can be finished with <code>--resume &lt;staging-dir&gt;</code>
+ * without re-running the MapReduce job.
+ */
+public class BulkLoadManifest {
+
+	public static final String RESUME_OPTION = "--resume";
+	public static final String MANIFEST_NAME = "_manifest";
+	public static final String BATCH_REGIONS_KEY = "bulkload.load.batch.regions";
+	public static final int DEFAULT_BATCH_REGIONS = 32;
+	/** keep the output dir and its manifest after a successful load */
+	public static final String KEEP_OUTPUT_KEY = "bulkload.output.keep";
+	static final String LOADING_DIR = "_loading";
+	/** where LoadIncrementalHFiles writes the halves of a file it splits */
+	static final String SPLIT_DIR = "_tmp";
+
+	enum State {
+		PENDING, LOADED
+	}
+
+	static class Entry {
+		State state;
+		String region;
+		long size;
+		String family;
+		String name;
+		/** current location, relative to the staging dir */
+		String location;
+	}
+
+	private final FileSystem fs;
+	private final Path stagingDir;
+	private final List<Entry> entries;
+
+	private BulkLoadManifest(FileSystem fs, Path stagingDir, List<Entry> entries) {
+		this.fs = fs;
+		this.stagingDir = stagingDir;
+		this.entries = entries;
+	}
+
+	/**
+	 * Record every HFile under the staging dir as pending and persist the manifest
+	 * @param fs
+	 * @param stagingDir HFileOutputFormat2 output, one sub directory per family
+	 * @param regionLocator
+	 * @param conf
+	 * @return
+	 * @throws IOException
+	 */
+	public static BulkLoadManifest create(FileSystem fs, Path stagingDir,
+			RegionLocator regionLocator, Configuration conf) throws IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+		CacheConfig cacheConf = new CacheConfig(conf);
+		for (FileStatus familyDir : fs.listStatus(stagingDir)) {
+			if (!familyDir.isDirectory() || isHidden(familyDir.getPath())) {
+				continue;
+			}
+			for (FileStatus hfile : fs.listStatus(familyDir.getPath())) {
+				if (hfile.isDirectory() || isHidden(hfile.getPath())) {
+					continue;
+				}
+				HFile.Reader reader = HFile.createReader(fs, hfile.getPath(), cacheConf, conf);
+				byte[] firstRow;
+				try {
+					reader.loadFileInfo();
+					firstRow = reader.getFirstRowKey();
+				} finally {
+					reader.close();
+				}
+				if (firstRow == null) {
+					continue;
+				}
+				Entry entry = new Entry();
+				entry.state = State.PENDING;
+				entry.region = regionLocator.getRegionLocation(firstRow).getRegionInfo().getEncodedName();
+				entry.size = hfile.getLen();
+				entry.family = familyDir.getPath().getName();
+				entry.name = hfile.getPath().getName();
+				entry.location = entry.family + Path.SEPARATOR + entry.name;
+				entries.add(entry);
+			}
+		}
+		BulkLoadManifest manifest = new BulkLoadManifest(fs, stagingDir, entries);
+		manifest.write();
+		return manifest;
+	}
+
+	public static BulkLoadManifest read(FileSystem fs, Path stagingDir) throws IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+		Path manifest = new Path(stagingDir, MANIFEST_NAME);
+		if (!fs.exists(manifest)) {
+			// a failure between deleting the old manifest and renaming the new one
+			manifest = new Path(stagingDir, MANIFEST_NAME + ".tmp");
+		}
+		BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(manifest), "UTF-8"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split("\t");
+				Entry entry = new Entry();
+				entry.state = State.valueOf(fields[0]);
+				entry.region = fields[1];
+				entry.size = Long.parseLong(fields[2]);
+				entry.family = fields[3];
+				entry.name = fields[4];
+				entry.location = fields[5];
+				entries.add(entry);
+			}
+		} finally {
+			in.close();
+		}
+		return new BulkLoadManifest(fs, stagingDir, entries);
+	}
+
+	/**
+	 * Load every pending HFile into the table, a batch of regions at a time,
+	 * and report the files this run loaded
+	 * @param conf
+	 * @param table
+	 * @throws Exception
+	 */
+	public void load(Configuration conf, HTable table) throws Exception {
+		reconcile();
+		Map<String, List<Entry>> byRegion = new TreeMap<String, List<Entry>>();
+		for (Entry entry : entries) {
+			if (entry.state == State.PENDING) {
+				List<Entry> files = byRegion.get(entry.region);
+				if (files == null) {
+					files = new ArrayList<Entry>();
+					byRegion.put(entry.region, files);
+				}
+				files.add(entry);
+			}
+		}
+
+		LoadIncrementalHFiles loader = new LoadIncrementalHFiles(conf);
+		int batchRegions = conf.getInt(BATCH_REGIONS_KEY, DEFAULT_BATCH_REGIONS);
+		String attempt = Long.toString(System.currentTimeMillis());
+		List<Entry> batch = new ArrayList<Entry>();
+		int regions = 0;
+		int batchNo = 0;
+		int loaded = 0;
+		long loadedBytes = 0;
+		for (List<Entry> files : byRegion.values()) {
+			batch.addAll(files);
+			if (++regions == batchRegions) {
+				loadBatch(loader, table, batch, attempt + "-" + batchNo++);
+				loaded += batch.size();
+				loadedBytes += getBytes(batch);
+				batch.clear();
+				regions = 0;
+			}
+		}
+		if (!batch.isEmpty()) {
+			loadBatch(loader, table, batch, attempt + "-" + batchNo);
+			loaded += batch.size();
+			loadedBytes += getBytes(batch);
+		}
+		System.out.println("Loaded " + loaded + " hfiles (" + loadedBytes + " bytes) from " + stagingDir
+				+ (loaded < entries.size() ? ", " + (entries.size() - loaded) + " were loaded before" : ""));
+	}
+
+	/**
+	 * @return encoded names of the regions this load targets
+	 */
+	public Set<String> getRegions() {
+		Set<String> regions = new TreeSet<String>();
+		for (Entry entry : entries) {
+			regions.add(entry.region);
+		}
+		return regions;
+	}
+
+	public long getLoadedBytes() {
+		long bytes = 0;
+		for (Entry entry : entries) {
+			if (entry.state == State.LOADED) {
+				bytes += entry.size;
+			}
+		}
+		return bytes;
+	}
+
+	private static long getBytes(List<Entry> files) {
+		long bytes = 0;
+		for (Entry entry : files) {
+			bytes += entry.size;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Load the staging dirs of several tables. Every table's manifest is
+	 * written before the first table is loaded, so a failure partway leaves
+	 * all of them to <code>--resume</code>. The tables are still loaded one
+	 * after another, not atomically. The {@link PostLoadCompactor}, if
+	 * enabled, runs once after the last table is loaded.
+	 * @param conf
+	 * @param connection
+	 * @param fs
+	 * @param tableDirs staging dir of each table, in load order
+	 * @throws Exception
+	 */
+	public static void load(Configuration conf, Connection connection, FileSystem fs,
+			Map<Path, TableName> tableDirs) throws Exception {
+		Map<Path, BulkLoadManifest> manifests = new LinkedHashMap<Path, BulkLoadManifest>();
+		for (Map.Entry<Path, TableName> tableDir : tableDirs.entrySet()) {
+			manifests.put(tableDir.getKey(), readOrCreate(connection, conf, fs, tableDir.getKey(), tableDir.getValue()));
+		}
+		Map<TableName, Set<String>> regions = new LinkedHashMap<TableName, Set<String>>();
+		for (Map.Entry<Path, TableName> tableDir : tableDirs.entrySet()) {
+			BulkLoadManifest manifest = manifests.get(tableDir.getKey());
+			HTable table = (HTable) connection.getTable(tableDir.getValue());
+			try {
+				manifest.load(conf, table);
+			} finally {
+				table.close();
+			}
+			regions.put(tableDir.getValue(), manifest.getRegions());
+		}
+
+		PostLoadCompactor compactor = PostLoadCompactor.fromConf(conf);
+		if (compactor != null) {
+			compactor.run(regions);
+		}
+	}
+
+	private static BulkLoadManifest readOrCreate(Connection connection, Configuration conf, FileSystem fs,
+			Path stagingDir, TableName tableName) throws IOException {
+		if (hasManifest(fs, stagingDir)) {
+			return read(fs, stagingDir);
+		}
+		RegionLocator locator = connection.getRegionLocator(tableName);
+		try {
+			return create(fs, stagingDir, locator, conf);
+		} finally {
+			locator.close();
+		}
+	}
+
+	/**
+	 * Finish loading a staging dir left behind by a failed run. Table dirs of
+	 * multi-table output that still have HFiles but no manifest get one first,
+	 * and index tables are loaded before data tables, as in the first run.
+	 * @param conf
+	 * @param stagingDir
+	 * @param tableName table of single-table output
+	 * @return
+	 * @throws Exception
+	 */
+	public static int resume(Configuration conf, Path stagingDir, TableName tableName) throws Exception {
+		FileSystem fs = stagingDir.getFileSystem(conf);
+		Connection connection = SharedConnection.acquire(conf);
+		try {
+			load(conf, connection, fs, MultiTableOutput.indexesFirst(conf, tableDirs(fs, stagingDir, tableName)));
+			return 0;
+		} finally {
+			SharedConnection.release(connection);
+		}
+	}
+
+	/**
+	 * A staging dir either has family dirs, which only hold files, or for
+	 * multi-table output one dir per table holding family dirs.
+	 * @return staging dir of each table
+	 */
+	private static Map<Path, TableName> tableDirs(FileSystem fs, Path stagingDir, TableName tableName)
+			throws IOException {
+		Map<Path, TableName> tableDirs = new LinkedHashMap<Path, TableName>();
+		if (!hasManifest(fs, stagingDir)) {
+			for (FileStatus dir : fs.listStatus(stagingDir)) {
+				if (dir.isDirectory() && !isHidden(dir.getPath())
+						&& (hasManifest(fs, dir.getPath()) || hasDirectory(fs, dir.getPath()))) {
+					tableDirs.put(dir.getPath(), TableName.valueOf(dir.getPath().getName()));
+				}
+			}
+		}
+		if (tableDirs.isEmpty()) {
+			tableDirs.put(stagingDir, tableName);
+		}
+		return tableDirs;
+	}
+
+	private static boolean hasDirectory(FileSystem fs, Path dir) throws IOException {
+		for (FileStatus child : fs.listStatus(dir)) {
+			if (child.isDirectory() && !isHidden(child.getPath())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the dir, or for multi-table output one of its table dirs, has a manifest
+	 */
+	public static boolean exists(FileSystem fs, Path stagingDir) throws IOException {
+		if (!fs.exists(stagingDir)) {
+			return false;
+		}
+		if (hasManifest(fs, stagingDir)) {
+			return true;
+		}
+		for (FileStatus tableDir : fs.listStatus(stagingDir)) {
+			if (tableDir.isDirectory() && hasManifest(fs, tableDir.getPath())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if every table dir under the staging dir has been fully
+	 *         loaded: its manifest lists only loaded files, or it has no
+	 *         manifest and no HFiles
+	 */
+	public static boolean isComplete(FileSystem fs, Path stagingDir) throws IOException {
+		if (!fs.exists(stagingDir)) {
+			return true;
+		}
+		for (Path tableDir : tableDirs(fs, stagingDir, null).keySet()) {
+			if (hasManifest(fs, tableDir)) {
+				for (Entry entry : read(fs, tableDir).entries) {
+					if (entry.state != State.LOADED) {
+						return false;
+					}
+				}
+			} else if (hasHFiles(fs, tableDir)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean hasHFiles(FileSystem fs, Path tableDir) throws IOException {
+		for (FileStatus familyDir : fs.listStatus(tableDir)) {
+			if (!familyDir.isDirectory() || isHidden(familyDir.getPath())) {
+				continue;
+			}
+			for (FileStatus hfile : fs.listStatus(familyDir.getPath())) {
+				if (!hfile.isDirectory() && !isHidden(hfile.getPath())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static boolean hasManifest(FileSystem fs, Path stagingDir) throws IOException {
+		return fs.exists(new Path(stagingDir, MANIFEST_NAME))
+				|| fs.exists(new Path(stagingDir, MANIFEST_NAME + ".tmp"));
+	}
+
+	private void loadBatch(LoadIncrementalHFiles loader, HTable table, List<Entry> batch, String name)
+			throws IOException {
+		FsPermission changedPermission = new FsPermission(FsAction.ALL, FsAction.ALL, FsAction.ALL);
+		String batchLocation = LOADING_DIR + Path.SEPARATOR + name;
+		Path batchDir = new Path(stagingDir, batchLocation);
+		for (Entry entry : batch) {
+			Path familyDir = new Path(batchDir, entry.family);
+			if (!fs.exists(familyDir)) {
+				fs.mkdirs(familyDir);
+				fs.setPermission(familyDir, changedPermission);
+			}
+			String location = batchLocation + Path.SEPARATOR + entry.family + Path.SEPARATOR + entry.name;
+			if (!fs.rename(new Path(stagingDir, entry.location), new Path(stagingDir, location))) {
+				throw new IOException("Could not move " + entry.location + " to " + location);
+			}
+			entry.location = location;
+		}
+		fs.setPermission(new Path(stagingDir, LOADING_DIR), changedPermission);
+		fs.setPermission(batchDir, changedPermission);
+		write();
+
+		loader.doBulkLoad(batchDir, table);
+
+		for (Entry entry : batch) {
+			entry.state = State.LOADED;
+		}
+		write();
+	}
+
+	/**
+	 * Files are renamed into <code>_loading</code> before the manifest records
+	 * their new location, so a pending file missing from its recorded location
+	 * is looked up where it was generated and in every loading batch first.
+	 * Only a file found nowhere was moved into its region by a bulk load that
+	 * failed before the manifest was updated.
+	 * <p>
+	 * LoadIncrementalHFiles loads a file that spans regions as halves written
+	 * to <code>&lt;family&gt;/_tmp</code> of the batch, and leaves the file
+	 * itself in place. Halves left behind belong to a file that is either
+	 * recorded as loaded, and so are loaded with it, or still pending, and so
+	 * are written again when it is split on the next attempt. They are deleted
+	 * here and never loaded on their own; a half already loaded is loaded
+	 * again with the pending file, as the same cells with the same timestamps.
+	 */
+	private void reconcile() throws IOException {
+		Map<String, String> moved = new TreeMap<String, String>();
+		Path loadingDir = new Path(stagingDir, LOADING_DIR);
+		if (fs.exists(loadingDir)) {
+			for (FileStatus batchDir : fs.listStatus(loadingDir)) {
+				if (!batchDir.isDirectory()) {
+					continue;
+				}
+				for (FileStatus familyDir : fs.listStatus(batchDir.getPath())) {
+					if (!familyDir.isDirectory()) {
+						continue;
+					}
+					Path halves = new Path(familyDir.getPath(), SPLIT_DIR);
+					if (fs.exists(halves)) {
+						fs.delete(halves, true);
+					}
+					for (FileStatus hfile : fs.listStatus(familyDir.getPath())) {
+						if (hfile.isDirectory() || isHidden(hfile.getPath())) {
+							continue;
+						}
+						String file = familyDir.getPath().getName() + Path.SEPARATOR + hfile.getPath().getName();
+						moved.put(file, LOADING_DIR + Path.SEPARATOR + batchDir.getPath().getName()
+								+ Path.SEPARATOR + file);
+					}
+				}
+			}
+		}
+		for (Entry entry : entries) {
+			if (entry.state != State.PENDING || fs.exists(new Path(stagingDir, entry.location))) {
+				continue;
+			}
+			String generated = entry.family + Path.SEPARATOR + entry.name;
+			if (fs.exists(new Path(stagingDir, generated))) {
+				entry.location = generated;
+			} else if (moved.containsKey(generated)) {
+				entry.location = moved.get(generated);
+			} else {
+				entry.state = State.LOADED;
+			}
+		}
+	}
+
+	private void write() throws IOException {
+		Path manifest = new Path(stagingDir, MANIFEST_NAME);
+		Path tmp = new Path(stagingDir, MANIFEST_NAME + ".tmp");
+		Writer out = new OutputStreamWriter(fs.create(tmp, true), "UTF-8");
+		try {
+			out.write("#state\tregion\tsize\tfamily\tname\tlocation\n");
+			for (Entry entry : entries) {
+				out.write(entry.state + "\t" + entry.region + "\t" + entry.size + "\t"
+						+ entry.family + "\t" + entry.name + "\t" + entry.location + "\n");
+			}
+		} finally {
+			out.close();
+		}
+		fs.delete(manifest, false);
+		if (!fs.rename(tmp, manifest)) {
+			throw new IOException("Could not write " + manifest);
+		}
+	}
+
+	private static boolean isHidden(Path path) {
+		return path.getName().startsWith("_") || path.getName().startsWith(".");
+	}
+}
@@ -0,0 +1,105 @@
+package com.cloudera.services.hbase;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+/**
+ * Reducer side of {@link LoadChecksums}: counts the rows and cells the task
+ * writes and sums their hashes, per table, and at cleanup stores them in the
+ * task's work output next to the HFiles.
+ */
+public class ChecksumCollector {
+
+	static class Range {
+		final int table;
+		byte[] firstRow;
+		byte[] lastRow;
+		long rows;
+		long cells;
+		long sum;
+
+		Range(int table) {
+			this.table = table;
+		}
+	}
+
+	private final boolean tagged;
+	private final List<Range> ranges = new ArrayList<Range>();
+	private Range current;
+	private byte[] pendingRow;
+	private int pendingTable;
+
+	private ChecksumCollector(boolean tagged) {
+		this.tagged = tagged;
+	}
+
+	/**
+	 * @return a collector, or null if no checksum file is configured
+	 */
+	public static ChecksumCollector fromConf(Configuration conf) {
+		if (conf.get(LoadChecksums.PATH_KEY) == null) {
+			return null;
+		}
+		return new ChecksumCollector(MultiTableOutput.fromConf(conf) != null);
+	}
+
+	/**
+	 * Start a row. Keys arrive sorted, so rows of one table are contiguous.
+	 * The row counts once its first cell is added.
+	 * @param key the reduce key, tagged with the table under multi-table output
+	 */
+	public void startRow(byte[] key, int offset, int length) {
+		pendingTable = 0;
+		if (tagged && length > 0) {
+			pendingTable = key[offset] & 0xff;
+			offset++;
+			length--;
+		}
+		pendingRow = Arrays.copyOfRange(key, offset, offset + length);
+	}
+
+	public void add(Cell cell) {
+		if (pendingRow != null) {
+			if (current == null || current.table != pendingTable) {
+				current = new Range(pendingTable);
+				current.firstRow = pendingRow;
+				ranges.add(current);
+			}
+			current.lastRow = pendingRow;
+			current.rows++;
+			pendingRow = null;
+		}
+		current.cells++;
+		current.sum += LoadChecksums.hash(cell);
+	}
+
+	public void close(TaskInputOutputContext<?, ?, ?, ?> context) throws IOException, InterruptedException {
+		if (ranges.isEmpty()) {
+			return;
+		}
+		Path segment = new Path(new Path(FileOutputFormat.getWorkOutputPath(context), LoadChecksums.SEGMENTS_DIR),
+				"part-" + context.getTaskAttemptID().getTaskID().getId());
+		Writer out = new OutputStreamWriter(segment.getFileSystem(context.getConfiguration()).create(segment, true),
+				"UTF-8");
+		try {
+			for (Range range : ranges) {
+				out.write(range.table + "\t" + Bytes.toStringBinary(range.firstRow) + "\t"
+						+ Bytes.toStringBinary(range.lastRow) + "\t" + range.rows + "\t" + range.cells + "\t"
+						+ range.sum + "\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,270 @@
+package com.cloudera.services.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Admin;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.ConnectionFactory;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Dictionary encoding for low-cardinality columns. The values of the columns
+ * in <code>bulkload.dict.columns</code> (column indexes, or field names for
+ * Avro) are replaced at load time by small IDs written as unsigned varints, so
+ * a state code or "Investor Owned" takes a byte or two per cell.
+ * <p>
+ * The dictionaries live in the side table <code>bulkload.dict.table</code>
+ * (default "bulkload_dict"), one row per encoded column named
+ * <code>&lt;table&gt;/&lt;qualifier&gt;</code>, with a <code>v:&lt;value&gt;</code>
+ * cell holding the ID, an <code>i:&lt;id&gt;</code> cell holding the value,
+ * and a counter. Mappers load the rows at setup and add values they have not
+ * seen: a new ID comes from the counter, and a checkAndPut that expects the
+ * value to be absent makes concurrent mappers agree on one ID per value.
+ * Row keys are built from the original values, but index rows from
+ * <code>bulkload.index</code> on an encoded column are keyed by its ID.
+ * <p>
+ * Readers decode with a dictionary opened by {@link #open(Connection, Configuration, String)},
+ * which keeps the dictionaries in memory and reloads a column's row when it
+ * meets an ID it does not know:
+ *
+ * <pre>
+ * ColumnDictionary dict = ColumnDictionary.open(connection, conf, "qualys");
+ * byte[] state = dict.decode(cell);
+ * </pre>
+ *
+ * Decoding is thread safe, so readers can share one dictionary. Encoding is
+ * not; each mapper uses its own.
+ */
+public class ColumnDictionary {
+
+	public static final String COLUMNS_KEY = "bulkload.dict.columns";
+	public static final String TABLE_KEY = "bulkload.dict.table";
+	static final byte[] FAMILY = Bytes.toBytes("d");
+	static final byte[] COUNTER = Bytes.toBytes("next");
+	static final byte[] VALUE_PREFIX = Bytes.toBytes("v:");
+	static final byte[] ID_PREFIX = Bytes.toBytes("i:");
+
+	/** one encoded column's mappings, in both directions */
+	private static class Column {
+		final byte[] row;
+		final Map<ImmutableBytesWritable, byte[]> ids = new ConcurrentHashMap<ImmutableBytesWritable, byte[]>();
+		final Map<ImmutableBytesWritable, byte[]> values = new ConcurrentHashMap<ImmutableBytesWritable, byte[]>();
+
+		Column(byte[] row) {
+			this.row = row;
+		}
+	}
+
+	private final Connection connection;
+	private final boolean ownConnection;
+	private final Table table;
+	private final Map<ImmutableBytesWritable, Column> columns = new HashMap<ImmutableBytesWritable, Column>();
+	private final ImmutableBytesWritable probe = new ImmutableBytesWritable();
+
+	private ColumnDictionary(Connection connection, boolean ownConnection, Configuration conf, String tableName)
+			throws IOException {
+		this.connection = connection;
+		this.ownConnection = ownConnection;
+		this.table = connection.getTable(TableName.valueOf(conf.get(TABLE_KEY, "bulkload_dict")));
+		for (byte[] qualifier : qualifiers(conf)) {
+			Column column = new Column(Bytes.add(Bytes.toBytes(tableName + "/"), qualifier));
+			columns.put(new ImmutableBytesWritable(qualifier), column);
+			reload(column);
+		}
+	}
+
+	/**
+	 * For a mapper: opens its own connection
+	 * @param conf
+	 * @param tableName the importer's table
+	 * @return the dictionary, or null if no columns are encoded
+	 * @throws IOException
+	 */
+	public static ColumnDictionary fromConf(Configuration conf, String tableName) throws IOException {
+		if (qualifiers(conf).isEmpty()) {
+			return null;
+		}
+		return new ColumnDictionary(ConnectionFactory.createConnection(conf), true, conf, tableName);
+	}
+
+	/**
+	 * For a reader: decodes with the dictionaries of the encoded columns of a table
+	 * @param connection
+	 * @param conf names the encoded columns and the side table, as for the import
+	 * @param tableName
+	 * @throws IOException
+	 */
+	public static ColumnDictionary open(Connection connection, Configuration conf, String tableName)
+			throws IOException {
+		return new ColumnDictionary(connection, false, conf, tableName);
+	}
+
+	/**
+	 * Create the side table if it does not exist yet
+	 * @param conf
+	 * @param connection
+	 * @throws IOException
+	 */
+	public static void createTable(Configuration conf, Connection connection) throws IOException {
+		if (qualifiers(conf).isEmpty()) {
+			return;
+		}
+		TableName name = TableName.valueOf(conf.get(TABLE_KEY, "bulkload_dict"));
+		Admin admin = connection.getAdmin();
+		try {
+			if (!admin.tableExists(name)) {
+				HTableDescriptor htd = new HTableDescriptor(name);
+				htd.addFamily(new HColumnDescriptor(FAMILY).setInMemory(true).setMaxVersions(1));
+				admin.createTable(htd);
+			}
+		} finally {
+			admin.close();
+		}
+	}
+
+	static List<byte[]> qualifiers(Configuration conf) {
+		List<byte[]> qualifiers = new ArrayList<byte[]>();
+		for (String column : conf.getTrimmedStrings(COLUMNS_KEY)) {
+			try {
+				qualifiers.add(Bytes.toBytes(Integer.parseInt(column)));
+			} catch (NumberFormatException e) {
+				qualifiers.add(Bytes.toBytes(column));
+			}
+		}
+		return qualifiers;
+	}
+
+	/**
+	 * Replace the values of encoded columns in the Put by their IDs
+	 * @param put
+	 * @throws IOException
+	 */
+	public void encode(Put put) throws IOException {
+		for (List<Cell> cells : put.getFamilyCellMap().values()) {
+			for (int i = 0; i < cells.size(); i++) {
+				Cell cell = cells.get(i);
+				probe.set(cell.getQualifierArray(), cell.getQualifierOffset(), cell.getQualifierLength());
+				Column column = columns.get(probe);
+				if (column == null || cell.getValueLength() == 0) {
+					continue;
+				}
+				cells.set(i, new KeyValue(CellUtil.cloneRow(cell), CellUtil.cloneFamily(cell),
+						CellUtil.cloneQualifier(cell), cell.getTimestamp(), encode(column, CellUtil.cloneValue(cell))));
+			}
+		}
+	}
+
+	/**
+	 * @return the encoded value, or the value itself if the column is not encoded
+	 */
+	public byte[] encode(byte[] qualifier, byte[] value) throws IOException {
+		Column column = columns.get(new ImmutableBytesWritable(qualifier));
+		return column == null || value.length == 0 ? value : encode(column, value);
+	}
+
+	private byte[] encode(Column column, byte[] value) throws IOException {
+		ImmutableBytesWritable key = new ImmutableBytesWritable(value);
+		byte[] id = column.ids.get(key);
+		if (id != null) {
+			return id;
+		}
+		byte[] valueQualifier = Bytes.add(VALUE_PREFIX, value);
+		long next = table.incrementColumnValue(column.row, FAMILY, COUNTER, 1);
+		id = writeVarint(next);
+		Put put = new Put(column.row);
+		put.addColumn(FAMILY, valueQualifier, id);
+		put.addColumn(FAMILY, Bytes.add(ID_PREFIX, id), value);
+		if (!table.checkAndPut(column.row, FAMILY, valueQualifier, null, put)) {
+			// another mapper added the value first; its ID wins and ours stays unused
+			id = table.get(new Get(column.row).addColumn(FAMILY, valueQualifier)).getValue(FAMILY, valueQualifier);
+		}
+		column.ids.put(key, id);
+		column.values.put(new ImmutableBytesWritable(id), value);
+		return id;
+	}
+
+	/**
+	 * @return the original value of the cell, or its value if the column is not encoded
+	 * @throws IOException
+	 */
+	public byte[] decode(Cell cell) throws IOException {
+		return decode(CellUtil.cloneQualifier(cell), CellUtil.cloneValue(cell));
+	}
+
+	public byte[] decode(byte[] qualifier, byte[] value) throws IOException {
+		Column column = columns.get(new ImmutableBytesWritable(qualifier));
+		if (column == null || value.length == 0) {
+			return value;
+		}
+		ImmutableBytesWritable id = new ImmutableBytesWritable(value);
+		byte[] decoded = column.values.get(id);
+		if (decoded == null) {
+			// added by a load after the dictionary was read
+			reload(column);
+			decoded = column.values.get(id);
+			if (decoded == null) {
+				throw new IOException("Unknown dictionary id " + Bytes.toStringBinary(value) + " in "
+						+ Bytes.toStringBinary(column.row));
+			}
+		}
+		return decoded;
+	}
+
+	private void reload(Column column) throws IOException {
+		Result result = table.get(new Get(column.row).addFamily(FAMILY));
+		NavigableMap<byte[], byte[]> cells = result.getFamilyMap(FAMILY);
+		if (cells == null) {
+			cells = new TreeMap<byte[], byte[]>(Bytes.BYTES_COMPARATOR);
+		}
+		for (Map.Entry<byte[], byte[]> cell : cells.entrySet()) {
+			byte[] qualifier = cell.getKey();
+			if (Bytes.startsWith(qualifier, VALUE_PREFIX)) {
+				byte[] value = Bytes.tail(qualifier, qualifier.length - VALUE_PREFIX.length);
+				column.ids.put(new ImmutableBytesWritable(value), cell.getValue());
+			} else if (Bytes.startsWith(qualifier, ID_PREFIX)) {
+				byte[] id = Bytes.tail(qualifier, qualifier.length - ID_PREFIX.length);
+				column.values.put(new ImmutableBytesWritable(id), cell.getValue());
+			}
+		}
+	}
+
+	/**
+	 * @return the unsigned LEB128 encoding of a non-negative number: 7 bits per byte, high bit set on all but the last
+	 */
+	static byte[] writeVarint(long value) {
+		byte[] buffer = new byte[10];
+		int length = 0;
+		while ((value & ~0x7fL) != 0) {
+			buffer[length++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		buffer[length++] = (byte) value;
+		return Bytes.head(buffer, length);
+	}
+
+	public void close() throws IOException {
+		table.close();
+		if (ownConnection) {
+			connection.close();
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package com.cloudera.services.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.KeyValueUtil;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+/**
+ * In-mapper combiner for map output keyed by row. Only the last Put seen for
+ * a row key is kept (last writer wins), and the buffered rows are written in
+ * sorted order whenever their heap size reaches the configured cap and when
+ * the task finishes, so repeated natural keys never reach the shuffle.
+ */
+public class DedupBuffer {
+
+	public static final String ENABLED_KEY = "bulkload.dedup.enabled";
+	public static final String BUFFER_MB_KEY = "bulkload.dedup.buffer.mb";
+	public static final int DEFAULT_BUFFER_MB = 64;
+
+	public enum Counters {
+		DUPLICATE_ROWS, SHUFFLE_BYTES_SAVED, FLUSHES
+	}
+
+	private final Map<ImmutableBytesWritable, Put> buffer = new HashMap<ImmutableBytesWritable, Put>();
+	private final long maxHeapSize;
+	private long heapSize;
+	private long flushes;
+
+	public DedupBuffer(long maxHeapSize) {
+		this.maxHeapSize = maxHeapSize;
+	}
+
+	/**
+	 * @return a buffer sized from the configuration, or null if deduplication is disabled
+	 */
+	public static DedupBuffer fromConf(Configuration conf) {
+		if (!conf.getBoolean(ENABLED_KEY, false)) {
+			return null;
+		}
+		return new DedupBuffer(conf.getLong(BUFFER_MB_KEY, DEFAULT_BUFFER_MB) * 1024 * 1024);
+	}
+
+	public void add(ImmutableBytesWritable row, Put put,
+			TaskInputOutputContext<?, ?, ImmutableBytesWritable, Put> context)
+			throws IOException, InterruptedException {
+		Put previous = buffer.put(row, put);
+		heapSize += put.heapSize();
+		if (previous != null) {
+			heapSize -= previous.heapSize();
+			context.getCounter(Counters.DUPLICATE_ROWS).increment(1);
+			context.getCounter(Counters.SHUFFLE_BYTES_SAVED).increment(row.getLength() + serializedSize(previous));
+		}
+		if (heapSize >= maxHeapSize) {
+			flush(context);
+		}
+	}
+
+	/**
+	 * Drop a buffered row that a later record superseded
+	 * @return true if the row was still buffered
+	 */
+	public boolean remove(ImmutableBytesWritable row) {
+		Put previous = buffer.remove(row);
+		if (previous == null) {
+			return false;
+		}
+		heapSize -= previous.heapSize();
+		return true;
+	}
+
+	/**
+	 * @return how often the buffer has been written out
+	 */
+	public long getFlushes() {
+		return flushes;
+	}
+
+	public void flush(TaskInputOutputContext<?, ?, ImmutableBytesWritable, Put> context)
+			throws IOException, InterruptedException {
+		if (buffer.isEmpty()) {
+			return;
+		}
+		List<ImmutableBytesWritable> rows = new ArrayList<ImmutableBytesWritable>(buffer.keySet());
+		Collections.sort(rows);
+		for (ImmutableBytesWritable row : rows) {
+			context.write(row, buffer.get(row));
+		}
+		buffer.clear();
+		heapSize = 0;
+		flushes++;
+		context.getCounter(Counters.FLUSHES).increment(1);
+	}
+
+	private static long serializedSize(Put put) {
+		long size = 0;
+		for (List<Cell> cells : put.getFamilyCellMap().values()) {
+			for (Cell cell : cells) {
+				size += KeyValueUtil.length(cell);
+			}
+		}
+		return size;
+	}
+}
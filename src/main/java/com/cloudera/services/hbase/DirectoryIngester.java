@@ -0,0 +1,194 @@
+package com.cloudera.services.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * Long-running ingest from a directory that keeps receiving files:
+ *
+ * <pre>
+ * DirectoryIngester &lt;hbase-site.xml&gt; &lt;importer class&gt; &lt;watch dir&gt; &lt;work dir&gt;
+ * </pre>
+ *
+ * A file is only picked up once it has had the same length for two polls in
+ * a row and has not been modified for <code>bulkload.watch.quiet.seconds</code>
+ * (default the poll interval), so files still being written are left alone.
+ * New files are grouped into a micro-batch once they add up to
+ * <code>bulkload.watch.batch.mb</code> or the oldest has waited
+ * <code>bulkload.watch.batch.seconds</code>. A batch is claimed by renaming its
+ * files into <code>&lt;work&gt;/batch-&lt;id&gt;/input</code>, imported into
+ * <code>&lt;work&gt;/batch-&lt;id&gt;/hfiles</code>, and moved to
+ * <code>&lt;work&gt;/done</code> once loaded. All imports share one HBase
+ * connection. After a restart, unfinished batches are completed first: with
+ * <code>--resume</code> if their HFiles have a manifest, otherwise by running
+ * the import again. A batch only counts as done once every table's manifest
+ * lists all of its HFiles as loaded, so every file is bulk loaded exactly once.
+ * That does not hold for batches under <code>bulkload.stream.threshold.mb</code>,
+ * which are written as Puts: a batch that fails partway is written again with
+ * new timestamps, adding versions of the cells the first attempt wrote. Create
+ * <code>&lt;work&gt;/_STOP</code> to exit after the current batch.
+ */
+public class DirectoryIngester extends Configured implements Tool {
+
+	public static final String BATCH_MB_KEY = "bulkload.watch.batch.mb";
+	public static final String BATCH_SECONDS_KEY = "bulkload.watch.batch.seconds";
+	public static final String POLL_SECONDS_KEY = "bulkload.watch.poll.seconds";
+	public static final String QUIET_SECONDS_KEY = "bulkload.watch.quiet.seconds";
+	static final String DONE_DIR = "done";
+	static final String STOP_FILE = "_STOP";
+
+	private String hbaseSite;
+	private Class<? extends Tool> importerClass;
+	private FileSystem fs;
+	private Path workDir;
+
+	public int run(String[] args) throws Exception {
+
+		if (args.length != 4) {
+			System.err.println("Usage: DirectoryIngester <hbase-site.xml> <importer class> <watch dir> <work dir>");
+			return -1;
+		}
+
+		Configuration conf = HBaseConfiguration.create(getConf());
+		conf.addResource(new Path(args[0]));
+		hbaseSite = args[0];
+		importerClass = Class.forName(args[1]).asSubclass(Tool.class);
+		Path watchDir = new Path(args[2]);
+		workDir = new Path(args[3]);
+		fs = watchDir.getFileSystem(conf);
+		fs.mkdirs(new Path(workDir, DONE_DIR));
+
+		long batchBytes = conf.getLong(BATCH_MB_KEY, 1024) * 1024 * 1024;
+		long batchMillis = conf.getLong(BATCH_SECONDS_KEY, 300) * 1000;
+		long pollMillis = conf.getLong(POLL_SECONDS_KEY, 30) * 1000;
+		long quietMillis = conf.getLong(QUIET_SECONDS_KEY, pollMillis / 1000) * 1000;
+		// length of each file at the previous poll
+		Map<Path, Long> lengths = new HashMap<Path, Long>();
+
+		SharedConnection.open(conf);
+		try {
+			for (FileStatus batch : fs.listStatus(workDir)) {
+				if (batch.isDirectory() && batch.getPath().getName().startsWith("batch-")) {
+					recover(conf, batch.getPath());
+				}
+			}
+
+			while (!fs.exists(new Path(workDir, STOP_FILE))) {
+				List<FileStatus> ready = new ArrayList<FileStatus>();
+				Map<Path, Long> polled = new HashMap<Path, Long>();
+				long now = System.currentTimeMillis();
+				long bytes = 0;
+				long oldest = Long.MAX_VALUE;
+				for (FileStatus file : fs.listStatus(watchDir)) {
+					String name = file.getPath().getName();
+					// skip files still being written under a temporary name
+					if (!file.isFile() || name.startsWith("_") || name.startsWith(".")) {
+						continue;
+					}
+					polled.put(file.getPath(), file.getLen());
+					// and those still being written in place
+					if (now - file.getModificationTime() < quietMillis
+							|| !Long.valueOf(file.getLen()).equals(lengths.get(file.getPath()))) {
+						continue;
+					}
+					ready.add(file);
+					bytes += file.getLen();
+					oldest = Math.min(oldest, file.getModificationTime());
+				}
+				lengths = polled;
+				if (!ready.isEmpty()
+						&& (bytes >= batchBytes || System.currentTimeMillis() - oldest >= batchMillis)) {
+					ingest(conf, ready);
+				} else {
+					Thread.sleep(pollMillis);
+				}
+			}
+			fs.delete(new Path(workDir, STOP_FILE), false);
+			return 0;
+		} finally {
+			SharedConnection.close();
+		}
+	}
+
+	private void ingest(Configuration conf, List<FileStatus> files) throws Exception {
+		Path batch = new Path(workDir, "batch-" + System.currentTimeMillis());
+		Path input = new Path(batch, "input");
+		fs.mkdirs(input);
+		for (FileStatus file : files) {
+			if (!fs.rename(file.getPath(), new Path(input, file.getPath().getName()))) {
+				throw new IOException("Could not claim " + file.getPath());
+			}
+		}
+		System.out.println("Ingesting " + files.size() + " files as " + batch.getName());
+		runImport(conf, batch, false);
+	}
+
+	/**
+	 * Finish a batch left behind by a previous run
+	 */
+	private void recover(Configuration conf, Path batch) throws Exception {
+		Path hfiles = new Path(batch, "hfiles");
+		boolean loading = BulkLoadManifest.exists(fs, hfiles);
+		if (loading && BulkLoadManifest.isComplete(fs, hfiles)) {
+			System.out.println("Marking loaded " + batch.getName() + " done");
+			markDone(batch);
+			return;
+		}
+		if (!loading && fs.exists(hfiles)) {
+			fs.delete(hfiles, true);
+		}
+		System.out.println((loading ? "Resuming load of " : "Re-running ") + batch.getName());
+		runImport(conf, batch, loading);
+	}
+
+	private void runImport(Configuration conf, Path batch, boolean resume) throws Exception {
+		Path input = new Path(batch, "input");
+		Path hfiles = new Path(batch, "hfiles");
+		String[] args = resume
+				? new String[] { hbaseSite, BulkLoadManifest.RESUME_OPTION, hfiles.toString() }
+				: new String[] { hbaseSite, input.toString(), hfiles.toString() };
+		// the manifest must outlive the load, or a crash before the batch is
+		// marked done could not be told apart from a batch never imported
+		Configuration importConf = new Configuration(conf);
+		importConf.setBoolean(BulkLoadManifest.KEEP_OUTPUT_KEY, true);
+		// recovery looks for the HFiles inside the batch dir
+		importConf.setBoolean(StagingDir.RELOCATE_KEY, false);
+		int exitCode = ToolRunner.run(importConf, ReflectionUtils.newInstance(importerClass, conf), args);
+		if (exitCode != 0) {
+			throw new IOException(importerClass.getSimpleName() + " " + Arrays.toString(args)
+					+ " failed with exit code " + exitCode);
+		}
+		if (!BulkLoadManifest.isComplete(fs, hfiles)) {
+			throw new IOException("Not every table of " + batch + " is fully loaded");
+		}
+		markDone(batch);
+	}
+
+	private void markDone(Path batch) throws IOException {
+		Path done = new Path(new Path(workDir, DONE_DIR), batch.getName());
+		if (!fs.rename(batch, done)) {
+			throw new IOException("Could not mark " + batch + " done");
+		}
+		fs.delete(new Path(done, "hfiles"), true);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int exitCode = ToolRunner.run(HBaseConfiguration.create(),
+				new DirectoryIngester(), args);
+		System.exit(exitCode);
+	}
+}
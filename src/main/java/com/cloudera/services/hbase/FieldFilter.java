@@ -0,0 +1,195 @@
+package com.cloudera.services.hbase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Map-side row filter and column projection, read from the job configuration.
+ * <code>bulkload.filter</code> is a conjunction of simple row predicates,
+ * <code>column=value</code>, <code>column!=value</code> or
+ * <code>column~regex</code>, e.g. <code>bulkload.filter=col3=AL,col4!=Bundled</code>.
+ * <code>bulkload.columns.include</code> and <code>bulkload.columns.exclude</code>
+ * list the columns to write cells for; key fields are still read for the row key.
+ * <p>
+ * Columns are named as in the PWData schema for the ORC, Parquet and Avro
+ * importers, and by index for the text, CSV and RC importers.
+ */
+public class FieldFilter {
+
+	public static final String FILTER_KEY = "bulkload.filter";
+	public static final String INCLUDE_KEY = "bulkload.columns.include";
+	public static final String EXCLUDE_KEY = "bulkload.columns.exclude";
+
+	static class Predicate {
+		final String column;
+		final String op;
+		final String value;
+		final byte[] valueBytes;
+		final Pattern pattern;
+
+		Predicate(String column, String op, String value) {
+			this.column = column;
+			this.op = op;
+			this.value = value;
+			this.valueBytes = Bytes.toBytes(value);
+			this.pattern = op.equals("~") ? Pattern.compile(value) : null;
+		}
+
+		/**
+		 * @param actual the row's value, or null if absent
+		 */
+		boolean test(String actual) {
+			if (op.equals("!=")) {
+				return actual == null || !actual.equals(value);
+			}
+			if (actual == null) {
+				return false;
+			}
+			return pattern != null ? pattern.matcher(actual).matches() : actual.equals(value);
+		}
+
+		boolean test(byte[] actual) {
+			if (pattern == null) {
+				boolean equal = actual != null && Bytes.equals(actual, valueBytes);
+				return op.equals("!=") ? !equal : equal;
+			}
+			return test(actual == null ? null : Bytes.toString(actual));
+		}
+	}
+
+	private final List<Predicate> rowPredicates = new ArrayList<Predicate>();
+	private final Map<String, String> predicates = new LinkedHashMap<String, String>();
+	private String[] include;
+	private String[] exclude;
+
+	public static FieldFilter fromConf(Configuration conf) {
+		FieldFilter filter = new FieldFilter();
+		for (String predicate : conf.getTrimmedStrings(FILTER_KEY)) {
+			int at = -1;
+			for (int i = 0; i < predicate.length() && at < 0; i++) {
+				char c = predicate.charAt(i);
+				if (c == '=' || c == '~' || (c == '!' && predicate.startsWith("!=", i))) {
+					at = i;
+				}
+			}
+			if (at <= 0) {
+				throw new IllegalArgumentException("Bad " + FILTER_KEY + " predicate: " + predicate);
+			}
+			String op = predicate.startsWith("!=", at) ? "!=" : predicate.substring(at, at + 1);
+			String column = predicate.substring(0, at).trim();
+			String value = predicate.substring(at + op.length()).trim();
+			filter.rowPredicates.add(new Predicate(column, op, value));
+			if (op.equals("=")) {
+				filter.predicates.put(column, value);
+			}
+		}
+		String[] include = conf.getTrimmedStrings(INCLUDE_KEY);
+		String[] exclude = conf.getTrimmedStrings(EXCLUDE_KEY);
+		filter.include = include.length > 0 ? include : null;
+		filter.exclude = exclude.length > 0 ? exclude : null;
+		return filter;
+	}
+
+	public boolean isEmpty() {
+		return rowPredicates.isEmpty();
+	}
+
+	/**
+	 * @return column name to required value of the equality predicates, which
+	 *         can be pushed down to the reader, in configuration order
+	 */
+	public Map<String, String> getPredicates() {
+		return Collections.unmodifiableMap(predicates);
+	}
+
+	/**
+	 * Fail fast on columns the importer does not have
+	 * @param columns column names, or null if columns are referred to by index
+	 * @param count number of columns
+	 */
+	public void check(String[] columns, int count) {
+		List<String> references = new ArrayList<String>();
+		for (Predicate predicate : rowPredicates) {
+			references.add(predicate.column);
+		}
+		references.addAll(Arrays.asList(include != null ? include : new String[0]));
+		references.addAll(Arrays.asList(exclude != null ? exclude : new String[0]));
+		for (String reference : references) {
+			if (indexOf(reference, columns, count) < 0) {
+				throw new IllegalArgumentException("Unknown column " + reference + " in " + FILTER_KEY + ", "
+						+ INCLUDE_KEY + " or " + EXCLUDE_KEY);
+			}
+		}
+	}
+
+	/**
+	 * @param columns column names, or null if columns are referred to by index
+	 * @param count number of columns
+	 * @return per column whether to write its cells, or null to write them all
+	 */
+	public boolean[] projection(String[] columns, int count) {
+		if (include == null && exclude == null) {
+			return null;
+		}
+		boolean[] keep = new boolean[count];
+		Arrays.fill(keep, include == null);
+		for (String column : include != null ? include : new String[0]) {
+			int i = indexOf(column, columns, count);
+			if (i >= 0) {
+				keep[i] = true;
+			}
+		}
+		for (String column : exclude != null ? exclude : new String[0]) {
+			int i = indexOf(column, columns, count);
+			if (i >= 0) {
+				keep[i] = false;
+			}
+		}
+		return keep;
+	}
+
+	/**
+	 * @param columns column names, or null if columns are referred to by index
+	 * @param values values[i] holds the value of column i, or null if absent
+	 * @return true if every predicate holds for the row
+	 */
+	public boolean matches(String[] columns, byte[][] values) {
+		for (Predicate predicate : rowPredicates) {
+			int i = indexOf(predicate.column, columns, values.length);
+			if (!predicate.test(i >= 0 ? values[i] : null)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public boolean matches(String[] columns, String[] values) {
+		for (Predicate predicate : rowPredicates) {
+			int i = indexOf(predicate.column, columns, values.length);
+			if (!predicate.test(i >= 0 ? values[i] : null)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int indexOf(String column, String[] columns, int count) {
+		if (columns != null) {
+			return Arrays.asList(columns).indexOf(column);
+		}
+		try {
+			int i = Integer.parseInt(column);
+			return i >= 0 && i < count ? i : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package com.cloudera.services.hbase;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.TaskCounter;
+
+/**
+ * Timings and sizes of one import, written as a properties file to
+ * <code>bulkload.report.path</code> when that is set:
+ *
+ * <pre>
+ * rows, job.millis, load.millis, hfile.bytes, shuffle.bytes, copy.bytes, gc.millis
+ * </pre>
+ *
+ * where rows is the number of input records read, plus the allocation
+ * averages when {@link AllocationMeter} is enabled.
+ */
+public class ImportReport {
+
+	public static final String PATH_KEY = "bulkload.report.path";
+
+	private final Properties values = new Properties();
+	private final long started = System.currentTimeMillis();
+	private long jobFinished;
+
+	/**
+	 * Record the job's counters and the size of the HFiles it wrote
+	 * @param job
+	 * @param fs
+	 * @param outputDir
+	 * @throws IOException
+	 */
+	public void jobFinished(Job job, FileSystem fs, Path outputDir) throws IOException {
+		jobFinished = System.currentTimeMillis();
+		Counters counters = job.getCounters();
+		values.setProperty("job.millis", Long.toString(jobFinished - started));
+		// map output counts a record once per table and before deduplication
+		values.setProperty("rows", Long.toString(counters.findCounter(TaskCounter.MAP_INPUT_RECORDS).getValue()));
+		values.setProperty("shuffle.bytes",
+				Long.toString(counters.findCounter(TaskCounter.MAP_OUTPUT_MATERIALIZED_BYTES).getValue()));
+		values.setProperty("hfile.bytes", Long.toString(fs.getContentSummary(outputDir).getLength()));
+		values.setProperty("gc.millis", Long.toString(counters.findCounter(TaskCounter.GC_TIME_MILLIS).getValue()));
+		long sampled = counters.findCounter(AllocationMeter.Counters.MAP_SAMPLED_RECORDS).getValue();
+		if (sampled > 0) {
+			values.setProperty("map.allocated.bytes.per.record", Long.toString(
+					counters.findCounter(AllocationMeter.Counters.MAP_SAMPLED_ALLOCATED_BYTES).getValue() / sampled));
+		}
+		sampled = counters.findCounter(AllocationMeter.Counters.REDUCE_SAMPLED_ROWS).getValue();
+		if (sampled > 0) {
+			values.setProperty("reduce.allocated.bytes.per.row", Long.toString(
+					counters.findCounter(AllocationMeter.Counters.REDUCE_SAMPLED_ALLOCATED_BYTES).getValue() / sampled));
+		}
+	}
+
+	/**
+	 * Record how many HFile bytes the load copies instead of renaming
+	 * @param bytes
+	 */
+	public void setCopyBytes(long bytes) {
+		values.setProperty("copy.bytes", Long.toString(bytes));
+	}
+
+	/**
+	 * Record the bulk load time and write the report, if one was asked for
+	 * @param conf
+	 * @throws IOException
+	 */
+	public void loadFinished(Configuration conf) throws IOException {
+		values.setProperty("load.millis", Long.toString(System.currentTimeMillis() - jobFinished));
+		String path = conf.get(PATH_KEY);
+		if (path == null) {
+			return;
+		}
+		Path report = new Path(path);
+		OutputStream out = report.getFileSystem(conf).create(report, true);
+		try {
+			values.store(out, null);
+		} finally {
+			out.close();
+		}
+	}
+}
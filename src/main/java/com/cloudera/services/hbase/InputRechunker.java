@@ -0,0 +1,196 @@
+package com.cloudera.services.hbase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * Pre-stage for the text and CSV importers: rewrites files in a compression
+ * format that cannot be split, such as gzip, as many smaller files cut on line
+ * boundaries, so the import gets one mapper per chunk instead of one per file.
+ *
+ * <pre>
+ * InputRechunker &lt;input&gt; &lt;output dir&gt;
+ * </pre>
+ *
+ * Chunks hold <code>bulkload.rechunk.mb</code> of uncompressed text (default
+ * 128) and are compressed with <code>bulkload.rechunk.codec</code> (default
+ * gzip) on <code>bulkload.rechunk.threads</code> threads while the input is
+ * still being decompressed. Files that are uncompressed or already splittable,
+ * such as bzip2, are skipped.
+ *
+ * <p>Bzip2 input needs no pre-stage: TextInputFormat already splits it at
+ * block boundaries. Set <code>bulkload.input.split.mb</code> to cap the split
+ * size of either kind of input below the HDFS block size.
+ */
+public class InputRechunker extends Configured implements Tool {
+
+	public static final String CHUNK_MB_KEY = "bulkload.rechunk.mb";
+	public static final String CODEC_KEY = "bulkload.rechunk.codec";
+	public static final String THREADS_KEY = "bulkload.rechunk.threads";
+	public static final String SPLIT_MB_KEY = "bulkload.input.split.mb";
+
+	/**
+	 * Apply <code>bulkload.input.split.mb</code> to a text import and warn about
+	 * input files that will each be read by a single mapper
+	 * @param job
+	 * @param input
+	 * @throws IOException
+	 */
+	public static void configureSplits(Job job, Path input) throws IOException {
+		Configuration conf = job.getConfiguration();
+		long splitBytes = conf.getLong(SPLIT_MB_KEY, 0) * 1024 * 1024;
+		if (splitBytes > 0) {
+			FileInputFormat.setMaxInputSplitSize(job, splitBytes);
+		}
+		FileSystem fs = input.getFileSystem(conf);
+		if (!fs.exists(input)) {
+			return;
+		}
+		CompressionCodecFactory codecs = new CompressionCodecFactory(conf);
+		long blockSize = fs.getDefaultBlockSize(input);
+		for (FileStatus file : fs.listStatus(input)) {
+			CompressionCodec codec = codecs.getCodec(file.getPath());
+			if (file.isFile() && codec != null && !(codec instanceof SplittableCompressionCodec)
+					&& file.getLen() > blockSize) {
+				System.err.println("WARNING: " + file.getPath() + " cannot be split and will be read by one mapper;"
+						+ " run InputRechunker on it first");
+			}
+		}
+	}
+
+	public int run(String[] args) throws Exception {
+
+		if (args.length != 2) {
+			System.err.println("Usage: InputRechunker <input> <output dir>");
+			return -1;
+		}
+
+		Configuration conf = getConf();
+		Path input = new Path(args[0]);
+		Path outputDir = new Path(args[1]);
+		FileSystem fs = input.getFileSystem(conf);
+		CompressionCodecFactory codecs = new CompressionCodecFactory(conf);
+		CompressionCodec outputCodec = ReflectionUtils.newInstance(
+				conf.getClass(CODEC_KEY, GzipCodec.class, CompressionCodec.class), conf);
+		int chunkBytes = conf.getInt(CHUNK_MB_KEY, 128) * 1024 * 1024;
+		int threads = conf.getInt(THREADS_KEY, 4);
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			for (FileStatus file : fs.globStatus(input)) {
+				List<FileStatus> files = file.isDirectory()
+						? Arrays.asList(fs.listStatus(file.getPath())) : Arrays.asList(file);
+				for (FileStatus f : files) {
+					CompressionCodec codec = codecs.getCodec(f.getPath());
+					if (f.isDirectory() || codec == null || codec instanceof SplittableCompressionCodec) {
+						System.out.println("Skipping " + f.getPath());
+						continue;
+					}
+					int chunks = rechunk(fs, f.getPath(), codec, outputDir, outputCodec, chunkBytes, threads, pool);
+					System.out.println("Rewrote " + f.getPath() + " as " + chunks + " chunks");
+				}
+			}
+			return 0;
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private int rechunk(final FileSystem fs, Path file, CompressionCodec codec, Path outputDir,
+			final CompressionCodec outputCodec, int chunkBytes, int threads, ExecutorService pool)
+			throws Exception {
+		String name = file.getName();
+		name = name.substring(0, name.length() - codec.getDefaultExtension().length());
+		// bounds the chunks held in memory while they wait to be compressed
+		final Semaphore inFlight = new Semaphore(threads * 2);
+		List<Future<?>> writes = new ArrayList<Future<?>>();
+
+		InputStream in = codec.createInputStream(fs.open(file));
+		try {
+			byte[] chunk = new byte[chunkBytes + 64 * 1024];
+			int length = 0;
+			int n = 0;
+			int read;
+			while ((read = in.read(chunk, length, chunk.length - length)) > 0) {
+				length += read;
+				if (length < chunkBytes && length < chunk.length) {
+					continue;
+				}
+				// cut after the last full line, carrying the rest into the next chunk
+				int cut = length;
+				while (cut > 0 && chunk[cut - 1] != '\n') {
+					cut--;
+				}
+				if (cut == 0) {
+					// a line longer than the buffer; grow it rather than split the line
+					chunk = Arrays.copyOf(chunk, chunk.length * 2);
+					continue;
+				}
+				inFlight.acquire();
+				writes.add(pool.submit(writeChunk(fs, new Path(outputDir, name + "-" + n++ + outputCodec.getDefaultExtension()),
+						outputCodec, Arrays.copyOf(chunk, cut), inFlight)));
+				System.arraycopy(chunk, cut, chunk, 0, length - cut);
+				length -= cut;
+			}
+			if (length > 0) {
+				inFlight.acquire();
+				writes.add(pool.submit(writeChunk(fs, new Path(outputDir, name + "-" + n++ + outputCodec.getDefaultExtension()),
+						outputCodec, Arrays.copyOf(chunk, length), inFlight)));
+			}
+		} finally {
+			in.close();
+		}
+		for (Future<?> write : writes) {
+			write.get();
+		}
+		return writes.size();
+	}
+
+	private static Runnable writeChunk(final FileSystem fs, final Path path, final CompressionCodec codec,
+			final byte[] data, final Semaphore inFlight) {
+		return new Runnable() {
+			public void run() {
+				try {
+					OutputStream out = codec.createOutputStream(fs.create(path, true));
+					try {
+						out.write(data);
+					} finally {
+						out.close();
+					}
+				} catch (IOException e) {
+					throw new RuntimeException("Could not write " + path, e);
+				} finally {
+					inFlight.release();
+				}
+			}
+		};
+	}
+
+	public static void main(String[] args) throws Exception {
+		int exitCode = ToolRunner.run(new Configuration(), new InputRechunker(), args);
+		System.exit(exitCode);
+	}
+}
@@ -0,0 +1,252 @@
+package com.cloudera.services.hbase;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.MurmurHash;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * Full-coverage check of a bulk load. With <code>bulkload.checksum.path</code>
+ * set, every reducer records the key range it wrote with its row count, cell
+ * count and the sum of 64-bit cell hashes, and the importer merges them into
+ * that file together with the job's time span. The sums do not depend on
+ * order, so they can be recomputed from the table with one scan per range:
+ *
+ * <pre>
+ * LoadChecksums &lt;hbase-site.xml&gt; &lt;checksum file&gt;
+ * </pre>
+ *
+ * Ranges are scanned <code>bulkload.verify.threads</code> at a time, limited to
+ * cells stamped during the job (widened by <code>bulkload.verify.skew.ms</code>
+ * for clock skew), so data from earlier loads does not count. A cell hash
+ * covers row, family, qualifier and value, not the timestamp. Exits 1 if any
+ * range differs.
+ */
+public class LoadChecksums extends Configured implements Tool {
+
+	public static final String PATH_KEY = "bulkload.checksum.path";
+	public static final String THREADS_KEY = "bulkload.verify.threads";
+	public static final String SKEW_MS_KEY = "bulkload.verify.skew.ms";
+	/** per task segments, under the job output dir */
+	static final String SEGMENTS_DIR = "_checksums";
+
+	private static final MurmurHash HASH = (MurmurHash) MurmurHash.getInstance();
+	private static final String TIME_PREFIX = "#time\t";
+
+	static class Entry {
+		String table;
+		byte[] firstRow;
+		byte[] lastRow;
+		long rows;
+		long cells;
+		long sum;
+
+		static Entry parse(String line) {
+			String[] fields = line.split("\t");
+			Entry entry = new Entry();
+			entry.table = fields[0];
+			entry.firstRow = Bytes.toBytesBinary(fields[1]);
+			entry.lastRow = Bytes.toBytesBinary(fields[2]);
+			entry.rows = Long.parseLong(fields[3]);
+			entry.cells = Long.parseLong(fields[4]);
+			entry.sum = Long.parseLong(fields[5]);
+			return entry;
+		}
+
+		String format() {
+			return table + "\t" + Bytes.toStringBinary(firstRow) + "\t" + Bytes.toStringBinary(lastRow) + "\t"
+					+ rows + "\t" + cells + "\t" + sum;
+		}
+	}
+
+	/**
+	 * @return a 64-bit hash of the cell's row, family, qualifier and value
+	 */
+	static long hash(Cell cell) {
+		long hash = 0;
+		for (int seed : new int[] { 0, 0x5bd1e995 }) {
+			int h = HASH.hash(cell.getRowArray(), cell.getRowOffset(), cell.getRowLength(), seed);
+			h = HASH.hash(cell.getFamilyArray(), cell.getFamilyOffset(), cell.getFamilyLength(), h);
+			h = HASH.hash(cell.getQualifierArray(), cell.getQualifierOffset(), cell.getQualifierLength(), h);
+			h = HASH.hash(cell.getValueArray(), cell.getValueOffset(), cell.getValueLength(), h);
+			hash = (hash << 32) | (h & 0xffffffffL);
+		}
+		return hash;
+	}
+
+	/**
+	 * Have the job's reducer record checksums. Call after the reducer has been chosen.
+	 * @param job
+	 * @throws IOException
+	 */
+	public static void configureJob(Job job) throws IOException {
+		if (job.getConfiguration().get(PATH_KEY) != null) {
+			TrackingPutSortReducer.configureJob(job);
+		}
+	}
+
+	/**
+	 * Merge the ranges written by the reducers into the configured file
+	 * @param job the finished job
+	 * @param outputDir job output dir
+	 * @param tableName the importer's table, used unless multi-table output is configured
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static void merge(Job job, Path outputDir, String tableName) throws IOException, InterruptedException {
+		Configuration conf = job.getConfiguration();
+		String target = conf.get(PATH_KEY);
+		if (target == null) {
+			return;
+		}
+		MultiTableOutput tables = MultiTableOutput.fromConf(conf);
+		FileSystem fs = outputDir.getFileSystem(conf);
+		Path segmentsDir = new Path(outputDir, SEGMENTS_DIR);
+		Path path = new Path(target);
+		Writer out = new OutputStreamWriter(path.getFileSystem(conf).create(path, true), "UTF-8");
+		try {
+			out.write(TIME_PREFIX + job.getStartTime() + "\t" + job.getFinishTime() + "\n");
+			if (fs.exists(segmentsDir)) {
+				for (FileStatus part : fs.listStatus(segmentsDir)) {
+					BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(part.getPath()), "UTF-8"));
+					try {
+						String line;
+						while ((line = in.readLine()) != null) {
+							Entry entry = Entry.parse(line);
+							int table = Integer.parseInt(entry.table);
+							entry.table = tables != null ? tables.getTableNames().get(table) : tableName;
+							out.write(entry.format() + "\n");
+						}
+					} finally {
+						in.close();
+					}
+				}
+			}
+		} finally {
+			out.close();
+		}
+		fs.delete(segmentsDir, true);
+	}
+
+	public int run(String[] args) throws Exception {
+
+		if (args.length != 2) {
+			System.err.println("Usage: LoadChecksums <hbase-site.xml> <checksum file>");
+			return -1;
+		}
+
+		Configuration conf = HBaseConfiguration.create(getConf());
+		conf.addResource(new Path(args[0]));
+		Path path = new Path(args[1]);
+		long skew = conf.getLong(SKEW_MS_KEY, 5 * 60 * 1000);
+		long start = 0;
+		long finish = Long.MAX_VALUE - skew;
+		List<Entry> entries = new ArrayList<Entry>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(path.getFileSystem(conf).open(path), "UTF-8"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith(TIME_PREFIX)) {
+					String[] times = line.substring(TIME_PREFIX.length()).split("\t");
+					start = Long.parseLong(times[0]);
+					finish = Long.parseLong(times[1]);
+				} else if (!line.isEmpty()) {
+					entries.add(Entry.parse(line));
+				}
+			}
+		} finally {
+			in.close();
+		}
+
+		final long minStamp = Math.max(0, start - skew);
+		final long maxStamp = finish + skew;
+		final Connection connection = SharedConnection.acquire(conf);
+		ExecutorService pool = Executors.newFixedThreadPool(conf.getInt(THREADS_KEY, 8));
+		try {
+			List<Future<Entry>> scans = new ArrayList<Future<Entry>>();
+			for (final Entry expected : entries) {
+				scans.add(pool.submit(new Callable<Entry>() {
+					public Entry call() throws IOException {
+						return scan(connection, expected, minStamp, maxStamp);
+					}
+				}));
+			}
+			int mismatched = 0;
+			for (int i = 0; i < entries.size(); i++) {
+				Entry expected = entries.get(i);
+				Entry actual = scans.get(i).get();
+				if (actual.rows != expected.rows || actual.cells != expected.cells || actual.sum != expected.sum) {
+					mismatched++;
+					System.out.println("MISMATCH " + expected.table + " [" + Bytes.toStringBinary(expected.firstRow)
+							+ ", " + Bytes.toStringBinary(expected.lastRow) + "] expected rows=" + expected.rows
+							+ " cells=" + expected.cells + " sum=" + expected.sum + ", found rows=" + actual.rows
+							+ " cells=" + actual.cells + " sum=" + actual.sum);
+				}
+			}
+			System.out.println("Verified " + entries.size() + " ranges, " + mismatched + " mismatched");
+			return mismatched == 0 ? 0 : 1;
+		} finally {
+			pool.shutdown();
+			SharedConnection.release(connection);
+		}
+	}
+
+	private static Entry scan(Connection connection, Entry expected, long minStamp, long maxStamp)
+			throws IOException {
+		Entry actual = new Entry();
+		Table table = connection.getTable(TableName.valueOf(expected.table));
+		try {
+			// the stop row is exclusive; the smallest key after lastRow is lastRow + 0x00
+			Scan scan = new Scan(expected.firstRow, Bytes.add(expected.lastRow, new byte[1]));
+			scan.setTimeRange(minStamp, maxStamp);
+			scan.setCaching(1000);
+			scan.setCacheBlocks(false);
+			ResultScanner scanner = table.getScanner(scan);
+			try {
+				for (Result result : scanner) {
+					actual.rows++;
+					for (Cell cell : result.rawCells()) {
+						actual.cells++;
+						actual.sum += hash(cell);
+					}
+				}
+			} finally {
+				scanner.close();
+			}
+		} finally {
+			table.close();
+		}
+		return actual;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int exitCode = ToolRunner.run(HBaseConfiguration.create(), new LoadChecksums(), args);
+		System.exit(exitCode);
+	}
+}
@@ -0,0 +1,295 @@
+package com.cloudera.services.hbase;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.KeyValueUtil;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.hadoop.mapreduce.lib.map.WrappedMapper;
+import org.apache.hadoop.mapreduce.task.MapContextImpl;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Dry run of an import: <code>BulkImporter &lt;hbase-site.xml&gt; --plan &lt;input&gt;</code>.
+ * The job's own input format and mapper are run in-process over a sample of
+ * the input splits, and the sampled row keys and cell bytes are scaled up to
+ * the whole input and bucketed by the table's current region boundaries. The
+ * report lists the estimated rows, bytes and HFiles per region, the reducer
+ * skew, and the regions that will outgrow hbase.hregion.max.filesize and split
+ * after the load. No MapReduce job is submitted and nothing is written; with
+ * <code>bulkload.dict.columns</code> the cell bytes are those before dictionary
+ * encoding.
+ */
+public class LoadPlanner {
+
+	public static final String PLAN_OPTION = "--plan";
+	public static final String SAMPLE_SPLITS_KEY = "bulkload.plan.sample.splits";
+	public static final String SAMPLE_RECORDS_KEY = "bulkload.plan.sample.records";
+
+	private final Job job;
+	private final RegionLocator regionLocator;
+	private final byte[][] startKeys;
+	private final long[] rows;
+	private final long[] bytes;
+
+	public LoadPlanner(Job job, RegionLocator regionLocator) throws IOException {
+		this.job = job;
+		this.regionLocator = regionLocator;
+		this.startKeys = regionLocator.getStartKeys();
+		this.rows = new long[startKeys.length];
+		this.bytes = new long[startKeys.length];
+	}
+
+	/**
+	 * Sample the input and print the plan
+	 * @return 0
+	 * @throws Exception
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public int run() throws Exception {
+		Configuration conf = job.getConfiguration();
+		InputFormat inputFormat = ReflectionUtils.newInstance(job.getInputFormatClass(), conf);
+		List<InputSplit> splits = inputFormat.getSplits(job);
+		long inputBytes = 0;
+		for (InputSplit split : splits) {
+			inputBytes += split.getLength();
+		}
+
+		// the dictionary side table may not exist yet and a plan must not add IDs to it,
+		// so the sample is sized without encoding
+		Configuration mapConf = new Configuration(conf);
+		mapConf.unset(ColumnDictionary.COLUMNS_KEY);
+
+		int sampleSplits = Math.min(splits.size(), conf.getInt(SAMPLE_SPLITS_KEY, 10));
+		int sampleRecords = conf.getInt(SAMPLE_RECORDS_KEY, 10000);
+		double sampledBytes = 0;
+		long sampled = 0;
+		for (int i = 0; i < sampleSplits; i++) {
+			// spread the sample over the whole input
+			InputSplit split = splits.get((int) ((long) i * splits.size() / sampleSplits));
+			TaskAttemptID attempt = new TaskAttemptID("plan", 0, TaskType.MAP, i, 0);
+			TaskAttemptContext context = new TaskAttemptContextImpl(mapConf, attempt);
+			LimitedRecordReader reader = new LimitedRecordReader(
+					inputFormat.createRecordReader(split, context), sampleRecords);
+			reader.initialize(split, context);
+			Mapper mapper = ReflectionUtils.newInstance(job.getMapperClass(), mapConf);
+			MapContextImpl mapContext = new MapContextImpl(mapConf, attempt, reader, new SampleWriter(),
+					null, new SampleReporter(), split);
+			try {
+				mapper.run(new WrappedMapper().getMapContext(mapContext));
+			} finally {
+				reader.close();
+			}
+			sampled += reader.records;
+			sampledBytes += reader.lastProgress * split.getLength();
+		}
+		report(inputBytes, sampledBytes, sampled, conf);
+		return 0;
+	}
+
+	private void report(long inputBytes, double sampledBytes, long sampled, Configuration conf)
+			throws IOException {
+		double scale = sampledBytes > 0 ? inputBytes / sampledBytes : 0;
+		long maxFileSize = conf.getLong(HConstants.HREGION_MAX_FILESIZE, HConstants.DEFAULT_MAX_FILE_SIZE);
+
+		System.out.println(String.format("%-34s %-20s %12s %14s %6s", "region", "start key", "rows", "bytes", "hfiles"));
+		long totalRows = 0;
+		long totalBytes = 0;
+		long maxBytes = 0;
+		int regionsWithData = 0;
+		int oversized = 0;
+		long hfiles = 0;
+		for (int i = 0; i < startKeys.length; i++) {
+			long regionRows = Math.round(rows[i] * scale);
+			long regionBytes = Math.round(bytes[i] * scale);
+			long regionFiles = regionBytes == 0 ? 0 : (regionBytes + maxFileSize - 1) / maxFileSize;
+			HRegionLocation location = regionLocator.getRegionLocation(startKeys[i]);
+			System.out.println(String.format("%-34s %-20s %12d %14d %6d",
+					location.getRegionInfo().getEncodedName(), Bytes.toStringBinary(startKeys[i]),
+					regionRows, regionBytes, regionFiles));
+			totalRows += regionRows;
+			totalBytes += regionBytes;
+			maxBytes = Math.max(maxBytes, regionBytes);
+			hfiles += regionFiles;
+			if (regionBytes > 0) {
+				regionsWithData++;
+			}
+			if (regionBytes > maxFileSize) {
+				oversized++;
+			}
+		}
+		double mean = startKeys.length == 0 ? 0 : (double) totalBytes / startKeys.length;
+		System.out.println();
+		System.out.println("input bytes            " + inputBytes);
+		System.out.println("sampled records        " + sampled + String.format(" (%.2f%% of input)",
+				inputBytes == 0 ? 0 : 100 * sampledBytes / inputBytes));
+		System.out.println("estimated rows         " + totalRows);
+		System.out.println("estimated cell bytes   " + totalBytes + " (uncompressed)");
+		System.out.println("estimated hfiles       " + hfiles);
+		System.out.println("regions receiving data " + regionsWithData + " of " + startKeys.length);
+		System.out.println(String.format("reducer skew           %.2f (largest region / mean)", mean == 0 ? 0 : maxBytes / mean));
+		System.out.println("regions splitting after load " + oversized
+				+ " (over " + HConstants.HREGION_MAX_FILESIZE + "=" + maxFileSize + ")");
+	}
+
+	private void record(byte[] row, long size) {
+		int region = Bytes.binarySearch(startKeys, row, 0, row.length, Bytes.BYTES_RAWCOMPARATOR);
+		if (region < 0) {
+			region = -(region + 1) - 1;
+		}
+		if (region < 0) {
+			return;
+		}
+		rows[region]++;
+		bytes[region] += size;
+	}
+
+	/** Collects the mapper's output keys and sizes instead of writing them. */
+	private class SampleWriter extends RecordWriter<Object, Object> {
+		private final boolean tagged = MultiTableOutput.fromConf(job.getConfiguration()) != null;
+
+		@Override
+		public void write(Object key, Object value) {
+			if (key instanceof PackedRowWritable) {
+				PackedRowWritable packed = (PackedRowWritable) key;
+				byte[] row = packed.getRow();
+				record(row, estimateSize(packed, row));
+				return;
+			}
+			byte[] row = ((ImmutableBytesWritable) key).copyBytes();
+			if (tagged) {
+				// regions are those of the importer's table; with bulkload.tables that should be listed first
+				if (row.length == 0 || row[0] != 0) {
+					return;
+				}
+				row = Bytes.tail(row, row.length - 1);
+			}
+			long size = 0;
+			for (List<Cell> cells : ((Put) value).getFamilyCellMap().values()) {
+				for (Cell cell : cells) {
+					size += KeyValueUtil.length(cell);
+				}
+			}
+			record(row, size);
+		}
+
+		@Override
+		public void close(TaskAttemptContext context) {
+		}
+	}
+
+	/**
+	 * A packed row's cells share its row key; each becomes a KeyValue carrying
+	 * the row, family "c", a 4 byte qualifier and the fixed key overhead.
+	 */
+	private static long estimateSize(PackedRowWritable packed, byte[] row) {
+		SortedMap<Integer, byte[]> cells = new TreeMap<Integer, byte[]>();
+		packed.collectCells(cells);
+		long size = 0;
+		for (byte[] value : cells.values()) {
+			size += KeyValue.getKeyValueDataStructureSize(row.length, 1, Bytes.SIZEOF_INT, value.length);
+		}
+		return size;
+	}
+
+	private static class SampleReporter extends StatusReporter {
+		private final Counters counters = new Counters();
+
+		@Override
+		public Counter getCounter(Enum<?> name) {
+			return counters.findCounter(name);
+		}
+
+		@Override
+		public Counter getCounter(String group, String name) {
+			return counters.findCounter(group, name);
+		}
+
+		@Override
+		public void progress() {
+		}
+
+		@Override
+		public float getProgress() {
+			return 0;
+		}
+
+		@Override
+		public void setStatus(String status) {
+		}
+	}
+
+	/** Stops after a fixed number of records, remembering how far into the split it got. */
+	private static class LimitedRecordReader<K, V> extends RecordReader<K, V> {
+		private final RecordReader<K, V> reader;
+		private final long limit;
+		long records;
+		float lastProgress;
+
+		LimitedRecordReader(RecordReader<K, V> reader, long limit) {
+			this.reader = reader;
+			this.limit = limit;
+		}
+
+		@Override
+		public void initialize(InputSplit split, TaskAttemptContext context) throws IOException, InterruptedException {
+			reader.initialize(split, context);
+		}
+
+		@Override
+		public boolean nextKeyValue() throws IOException, InterruptedException {
+			if (records >= limit) {
+				return false;
+			}
+			boolean next = reader.nextKeyValue();
+			if (next) {
+				records++;
+			}
+			lastProgress = next ? reader.getProgress() : 1.0f;
+			return next;
+		}
+
+		@Override
+		public K getCurrentKey() throws IOException, InterruptedException {
+			return reader.getCurrentKey();
+		}
+
+		@Override
+		public V getCurrentValue() throws IOException, InterruptedException {
+			return reader.getCurrentValue();
+		}
+
+		@Override
+		public float getProgress() throws IOException, InterruptedException {
+			return reader.getProgress();
+		}
+
+		@Override
+		public void close() throws IOException {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package com.cloudera.services.hbase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.map.MultithreadedMapper;
+
+/**
+ * Runs the importer's mapper on <code>bulkload.map.threads</code> threads
+ * inside each map task, for CPU-bound parsing and hashing in containers with
+ * more than one vcore. Each thread gets its own mapper instance, so its dedup
+ * buffer and MD5 cache are per thread and their limits apply per thread.
+ * Records are handed out and written under a lock on the task's context;
+ * output order across threads is not preserved. There is no ordered mode,
+ * since the shuffle sorts map output by row key and does not keep the input
+ * order of records with the same key either. The one place input order
+ * counts is deduplication, which keeps the last record of a row per thread
+ * here, so a job relying on it to keep the last operation per row should
+ * run one thread.
+ */
+public class MapThreads {
+
+	public static final String THREADS_KEY = "bulkload.map.threads";
+
+	/**
+	 * Wrap the job's mapper in a MultithreadedMapper if more than one thread is configured.
+	 * Call after the mapper class is set. The input values must be Writables
+	 * that can be copied, since each record is copied out to its thread.
+	 * @param job
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public static void configureJob(Job job) throws ClassNotFoundException {
+		Configuration conf = job.getConfiguration();
+		int threads = conf.getInt(THREADS_KEY, 1);
+		if (threads <= 1) {
+			return;
+		}
+		Class<? extends Mapper> mapper = job.getMapperClass();
+		MultithreadedMapper.setMapperClass(job, (Class) mapper);
+		MultithreadedMapper.setNumberOfThreads(job, threads);
+		job.setMapperClass(MultithreadedMapper.class);
+	}
+}
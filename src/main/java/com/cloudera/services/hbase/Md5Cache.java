@@ -0,0 +1,110 @@
+package com.cloudera.services.hbase;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+/**
+ * Per-task memo of the MD5 digests {@link RowKeyConverter} computes for the
+ * natural key fields. Frequent field values, such as state codes, are hashed
+ * once and then served from a least recently used map keyed on the raw field
+ * bytes, bounded by <code>bulkload.md5.cache.entries</code> and
+ * <code>bulkload.md5.cache.mb</code>. Not thread safe; each mapper owns one.
+ */
+public class Md5Cache {
+
+	public static final String ENABLED_KEY = "bulkload.md5.cache.enabled";
+	public static final String ENTRIES_KEY = "bulkload.md5.cache.entries";
+	public static final String MB_KEY = "bulkload.md5.cache.mb";
+
+	public enum Counters {
+		MD5_CACHE_HITS, MD5_CACHE_MISSES, MD5_CACHE_EVICTIONS
+	}
+
+	/** map entry, key and digest object headers, roughly */
+	private static final int ENTRY_OVERHEAD = 128;
+
+	private final int maxEntries;
+	private final long maxHeapSize;
+	private final ImmutableBytesWritable probe = new ImmutableBytesWritable();
+	private final Map<ImmutableBytesWritable, byte[]> digests;
+	private long heapSize;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	public Md5Cache(int maxEntries, long maxHeapSize) {
+		this.maxEntries = maxEntries;
+		this.maxHeapSize = maxHeapSize;
+		this.digests = new LinkedHashMap<ImmutableBytesWritable, byte[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ImmutableBytesWritable, byte[]> eldest) {
+				if (size() > Md5Cache.this.maxEntries || heapSize > Md5Cache.this.maxHeapSize) {
+					heapSize -= entrySize(eldest.getKey().getLength());
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @return a cache sized from the configuration, or null if it is disabled
+	 */
+	public static Md5Cache fromConf(Configuration conf) {
+		if (!conf.getBoolean(ENABLED_KEY, false)) {
+			return null;
+		}
+		return new Md5Cache(conf.getInt(ENTRIES_KEY, 100000), conf.getLong(MB_KEY, 16) * 1024 * 1024);
+	}
+
+	/**
+	 * @return the same digest as {@link Md5Utils#md5sum(String)} over the decoded field;
+	 *         callers must not modify it
+	 */
+	public byte[] md5sum(byte[] field) {
+		return md5sum(field, 0, field.length);
+	}
+
+	public byte[] md5sum(byte[] field, int offset, int length) {
+		probe.set(field, offset, length);
+		byte[] digest = digests.get(probe);
+		if (digest != null) {
+			hits++;
+			return digest;
+		}
+		misses++;
+		digest = Md5Utils.md5sum(new String(field, offset, length));
+		heapSize += entrySize(length);
+		digests.put(new ImmutableBytesWritable(Bytes.copy(field, offset, length)), digest);
+		return digest;
+	}
+
+	private static long entrySize(int keyLength) {
+		return ENTRY_OVERHEAD + keyLength + Md5Utils.MD5_LENGTH;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Add this task's hits, misses and evictions to the job counters; call once from cleanup
+	 */
+	public void report(TaskAttemptContext context) {
+		context.getCounter(Counters.MD5_CACHE_HITS).increment(hits);
+		context.getCounter(Counters.MD5_CACHE_MISSES).increment(misses);
+		context.getCounter(Counters.MD5_CACHE_EVICTIONS).increment(evictions);
+	}
+}
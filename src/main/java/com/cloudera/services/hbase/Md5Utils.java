@@ -9,14 +9,21 @@ public class Md5Utils {
 
   public static final int MD5_LENGTH = 16; // bytes
 
-  public static byte[] md5sum(String s) {
-    MessageDigest d;
-    try {
-      d = MessageDigest.getInstance("MD5");
-    } catch (NoSuchAlgorithmException e) {
-      throw new RuntimeException("MD5 algorithm not available!", e);
+  // MessageDigest is not thread safe; keep one per thread instead of one per call
+  private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("MD5");
+      } catch (NoSuchAlgorithmException e) {
+        throw new RuntimeException("MD5 algorithm not available!", e);
+      }
     }
-    return d.digest(Bytes.toBytes(s));
+  };
+
+  public static byte[] md5sum(String s) {
+    // digest() resets the instance for the next call
+    return DIGEST.get().digest(Bytes.toBytes(s));
   }
 
 }
\ No newline at end of file
@@ -0,0 +1,78 @@
+package com.cloudera.services.hbase;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+/**
+ * Reducer side of {@link MembershipFilter}: adds every row key the task
+ * writes to the task's filter segment and, at cleanup, stores it in the
+ * task's work output so it is committed together with the HFiles.
+ */
+public class MembershipCollector {
+
+	private final int bitsPerKey;
+	private final int table;
+	private final MembershipFilter.Segment segment;
+	private long count;
+
+	private MembershipCollector(int bitsPerKey, int table, long expectedKeys) {
+		this.bitsPerKey = bitsPerKey;
+		this.table = table;
+		this.segment = MembershipFilter.Segment.create(expectedKeys, bitsPerKey);
+	}
+
+	/**
+	 * @return a collector, or null if no membership file is configured
+	 */
+	public static MembershipCollector fromConf(Configuration conf) {
+		if (conf.get(MembershipFilter.PATH_KEY) == null) {
+			return null;
+		}
+		// with multi-table output only the first data table is recorded
+		int table = MultiTableOutput.fromConf(conf) != null ? 0 : -1;
+		long expectedKeys = conf.getLong(MembershipFilter.EXPECTED_KEYS_KEY,
+				conf.getLong(HConstants.HREGION_MAX_FILESIZE, HConstants.DEFAULT_MAX_FILE_SIZE) / 1024);
+		return new MembershipCollector(conf.getInt(MembershipFilter.BITS_PER_KEY_KEY,
+				MembershipFilter.DEFAULT_BITS_PER_KEY), table, expectedKeys);
+	}
+
+	/**
+	 * Record a reduce key. Keys arrive sorted, so the first one starts the segment.
+	 */
+	public void add(byte[] key, int offset, int length) {
+		if (table >= 0) {
+			if (length == 0 || (key[offset] & 0xff) != table) {
+				return;
+			}
+			offset++;
+			length--;
+		}
+		if (segment.firstRow == null) {
+			segment.firstRow = Arrays.copyOfRange(key, offset, offset + length);
+		}
+		segment.add(MembershipFilter.hash(key, offset, length));
+		count++;
+	}
+
+	public void close(TaskInputOutputContext<?, ?, ?, ?> context) throws IOException, InterruptedException {
+		if (count == 0) {
+			return;
+		}
+		Path part = new Path(new Path(FileOutputFormat.getWorkOutputPath(context), MembershipFilter.SEGMENTS_DIR),
+				"part-" + context.getTaskAttemptID().getTaskID().getId());
+		DataOutputStream out = part.getFileSystem(context.getConfiguration()).create(part, true);
+		try {
+			segment.fold(count, bitsPerKey);
+			segment.write(out);
+		} finally {
+			out.close();
+		}
+	}
+}
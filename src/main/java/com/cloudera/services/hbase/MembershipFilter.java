@@ -0,0 +1,257 @@
+package com.cloudera.services.hbase;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.MurmurHash;
+import org.apache.hadoop.mapreduce.Job;
+
+/**
+ * Row-key membership file for one import: a blocked Bloom filter per reducer,
+ * merged into one file at <code>bulkload.membership.path</code>. Reducers cover
+ * contiguous key ranges, so each filter is stored with the first row key it
+ * covers and a lookup probes only the filter whose range holds the key.
+ * <p>
+ * Each key sets all of its bits in one 512-bit block, so a lookup touches a
+ * single cache line. With the default 10 bits per key the false positive rate
+ * is about 1%; there are no false negatives.
+ * <p>
+ * A reducer inserts keys as it writes them into a filter sized for
+ * <code>bulkload.membership.expected.keys</code> keys (default: one per KB of
+ * hbase.hregion.max.filesize), then folds it down to the keys it actually saw.
+ * A reducer that writes more keys than expected gets a higher false positive
+ * rate.
+ *
+ * <pre>
+ * MembershipFilter keys = MembershipFilter.load(fs, new Path("/loads/2015-06-01.bloom"));
+ * if (keys.mightContain(rowKey)) ...
+ * </pre>
+ */
+public class MembershipFilter {
+
+	public static final String PATH_KEY = "bulkload.membership.path";
+	public static final String BITS_PER_KEY_KEY = "bulkload.membership.bits.per.key";
+	public static final int DEFAULT_BITS_PER_KEY = 10;
+	public static final String EXPECTED_KEYS_KEY = "bulkload.membership.expected.keys";
+	/** per task segments, under the job output dir */
+	static final String SEGMENTS_DIR = "_membership";
+
+	private static final int MAGIC = 0x424c4d31; // BLM1
+	private static final int BLOCK_LONGS = 8;
+	/** 128 MB per reducer */
+	private static final int MAX_BLOCKS = 1 << 21;
+	private static final MurmurHash HASH = (MurmurHash) MurmurHash.getInstance();
+
+	/** one reducer's keys */
+	static class Segment {
+		byte[] firstRow;
+		final int hashes;
+		long[] bits;
+
+		Segment(byte[] firstRow, int hashes, long[] bits) {
+			this.firstRow = firstRow;
+			this.hashes = hashes;
+			this.bits = bits;
+		}
+
+		/**
+		 * An empty filter for up to expectedKeys keys. The block count is a power
+		 * of two, so {@link #fold(long, int)} can shrink it once the real count is known.
+		 */
+		static Segment create(long expectedKeys, int bitsPerKey) {
+			int hashes = Math.max(1, Math.min(16, (int) Math.round(bitsPerKey * Math.log(2))));
+			int blocks = Integer.highestOneBit(blocksFor(expectedKeys, bitsPerKey));
+			if (blocks < blocksFor(expectedKeys, bitsPerKey)) {
+				blocks <<= 1;
+			}
+			return new Segment(null, hashes, new long[Math.min(blocks, MAX_BLOCKS) * BLOCK_LONGS]);
+		}
+
+		private static int blocksFor(long keys, int bitsPerKey) {
+			return (int) Math.max(1, Math.min(MAX_BLOCKS, (keys * bitsPerKey + 511) / 512));
+		}
+
+		void add(long hash) {
+			int offset = block(hash) * BLOCK_LONGS;
+			int h = (int) hash;
+			int step = (int) (hash >>> 41) | 1;
+			for (int i = 0; i < hashes; i++) {
+				int bit = (h + i * step) & 511;
+				bits[offset + (bit >>> 6)] |= 1L << bit;
+			}
+		}
+
+		boolean mightContain(long hash) {
+			int offset = block(hash) * BLOCK_LONGS;
+			int h = (int) hash;
+			int step = (int) (hash >>> 41) | 1;
+			for (int i = 0; i < hashes; i++) {
+				int bit = (h + i * step) & 511;
+				if ((bits[offset + (bit >>> 6)] & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private int block(long hash) {
+			return (int) (((hash >>> 32) & 0x7fffffffL) % (bits.length / BLOCK_LONGS));
+		}
+
+		/**
+		 * Halve the filter while it stays large enough for the keys added. With a
+		 * power of two block count a key's block in the half size filter is its
+		 * block modulo the new count, so the two halves are simply or-ed.
+		 */
+		void fold(long keys, int bitsPerKey) {
+			int blocks = bits.length / BLOCK_LONGS;
+			int needed = blocksFor(keys, bitsPerKey);
+			while (blocks % 2 == 0 && blocks / 2 >= needed) {
+				blocks /= 2;
+				long[] folded = Arrays.copyOf(bits, blocks * BLOCK_LONGS);
+				for (int i = 0; i < folded.length; i++) {
+					folded[i] |= bits[folded.length + i];
+				}
+				bits = folded;
+			}
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			out.writeInt(firstRow.length);
+			out.write(firstRow);
+			out.writeInt(hashes);
+			out.writeInt(bits.length);
+			for (long word : bits) {
+				out.writeLong(word);
+			}
+		}
+
+		static Segment read(DataInputStream in) throws IOException {
+			byte[] firstRow = new byte[in.readInt()];
+			in.readFully(firstRow);
+			int hashes = in.readInt();
+			long[] bits = new long[in.readInt()];
+			for (int i = 0; i < bits.length; i++) {
+				bits[i] = in.readLong();
+			}
+			return new Segment(firstRow, hashes, bits);
+		}
+	}
+
+	private final Segment[] segments;
+	private final byte[][] firstRows;
+
+	private MembershipFilter(List<Segment> segments) {
+		this.segments = segments.toArray(new Segment[segments.size()]);
+		Arrays.sort(this.segments, new java.util.Comparator<Segment>() {
+			public int compare(Segment a, Segment b) {
+				return Bytes.compareTo(a.firstRow, b.firstRow);
+			}
+		});
+		firstRows = new byte[this.segments.length][];
+		for (int i = 0; i < firstRows.length; i++) {
+			firstRows[i] = this.segments[i].firstRow;
+		}
+	}
+
+	/**
+	 * @return false if the row was certainly not in the import
+	 */
+	public boolean mightContain(byte[] row) {
+		return mightContain(row, 0, row.length);
+	}
+
+	public boolean mightContain(byte[] row, int offset, int length) {
+		if (segments.length == 0) {
+			return false;
+		}
+		int i = Bytes.binarySearch(firstRows, row, offset, length, Bytes.BYTES_RAWCOMPARATOR);
+		// an insertion point of 0 means the row sorts before every segment
+		int segment = i >= 0 ? i : -(i + 1) - 1;
+		return segment >= 0 && segments[segment].mightContain(hash(row, offset, length));
+	}
+
+	public static MembershipFilter load(FileSystem fs, Path path) throws IOException {
+		DataInputStream in = fs.open(path);
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException(path + " is not a membership file");
+			}
+			int count = in.readInt();
+			List<Segment> segments = new ArrayList<Segment>(count);
+			for (int i = 0; i < count; i++) {
+				segments.add(Segment.read(in));
+			}
+			return new MembershipFilter(segments);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Have the job's reducer record the row keys it writes. Call after the
+	 * reducer has been chosen.
+	 * @param job
+	 */
+	public static void configureJob(Job job) throws IOException {
+		if (job.getConfiguration().get(PATH_KEY) == null) {
+			return;
+		}
+		TrackingPutSortReducer.configureJob(job);
+	}
+
+	/**
+	 * Merge the segments written by the reducers into the configured file
+	 * @param conf
+	 * @param outputDir job output dir
+	 * @throws IOException
+	 */
+	public static void merge(Configuration conf, Path outputDir) throws IOException {
+		String target = conf.get(PATH_KEY);
+		if (target == null) {
+			return;
+		}
+		FileSystem fs = outputDir.getFileSystem(conf);
+		Path segmentsDir = new Path(outputDir, SEGMENTS_DIR);
+		List<Segment> segments = new ArrayList<Segment>();
+		if (fs.exists(segmentsDir)) {
+			for (FileStatus part : fs.listStatus(segmentsDir)) {
+				DataInputStream in = fs.open(part.getPath());
+				try {
+					segments.add(Segment.read(in));
+				} finally {
+					in.close();
+				}
+			}
+		}
+		Path path = new Path(target);
+		FileSystem targetFs = path.getFileSystem(conf);
+		DataOutputStream out = targetFs.create(path, true);
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(segments.size());
+			for (Segment segment : new MembershipFilter(segments).segments) {
+				segment.write(out);
+			}
+		} finally {
+			out.close();
+		}
+		fs.delete(segmentsDir, true);
+		System.out.println("Wrote membership filter for " + segments.size() + " reducers to " + path);
+	}
+
+	static long hash(byte[] row, int offset, int length) {
+		int h1 = HASH.hash(row, offset, length, 0x9747b28c);
+		int h2 = HASH.hash(row, offset, length, h1);
+		return ((long) h1 << 32) | (h2 & 0xffffffffL);
+	}
+}
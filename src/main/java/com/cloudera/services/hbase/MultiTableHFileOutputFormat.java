@@ -0,0 +1,244 @@
+package com.cloudera.services.hbase;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.KeyValueUtil;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.io.compress.Compression;
+import org.apache.hadoop.hbase.io.encoding.DataBlockEncoding;
+import org.apache.hadoop.hbase.io.hfile.CacheConfig;
+import org.apache.hadoop.hbase.io.hfile.HFileContext;
+import org.apache.hadoop.hbase.io.hfile.HFileContextBuilder;
+import org.apache.hadoop.hbase.regionserver.BloomType;
+import org.apache.hadoop.hbase.regionserver.HStore;
+import org.apache.hadoop.hbase.regionserver.StoreFile;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputCommitter;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.net.NetUtils;
+
+/**
+ * HFile output for keys tagged by {@link MultiTableOutput}: the first key byte
+ * selects the table, and cells are written to
+ * <code>&lt;output&gt;/&lt;table&gt;/&lt;family&gt;/</code> using that table's
+ * family settings. Like HFileOutputFormat2, files are rolled on a row
+ * boundary once they reach hbase.hregion.max.filesize.
+ * <p>
+ * With <code>bulkload.favored.nodes</code> set, each file is created with the
+ * datanode on the host serving its region as the HDFS favored node, so the
+ * region reads its bulk loaded data locally without waiting for a major
+ * compaction. The node of every reducer is worked out once at job setup, and
+ * the tasks never connect to HBase. The datanode port comes from
+ * <code>bulkload.favored.nodes.datanode.port</code> if set, otherwise from
+ * the namenode's datanode report.
+ */
+public class MultiTableHFileOutputFormat extends FileOutputFormat<ImmutableBytesWritable, Cell> {
+
+	public static final String FAVORED_NODES_KEY = "bulkload.favored.nodes";
+	public static final String DATANODE_PORT_KEY = "bulkload.favored.nodes.datanode.port";
+	/** favored node of each reduce partition, host:port or empty */
+	static final String PARTITION_NODES_KEY = "bulkload.favored.nodes.partitions";
+
+	static class FamilySpec {
+		Compression.Algorithm compression = Compression.Algorithm.NONE;
+		BloomType bloomType = BloomType.NONE;
+		int blockSize = HConstants.DEFAULT_BLOCKSIZE;
+		DataBlockEncoding encoding = DataBlockEncoding.NONE;
+	}
+
+	static class WriterState {
+		StoreFile.Writer writer;
+		long written;
+		byte[] lastRow;
+	}
+
+	@Override
+	public RecordWriter<ImmutableBytesWritable, Cell> getRecordWriter(final TaskAttemptContext context)
+			throws IOException {
+		final Configuration conf = context.getConfiguration();
+		final Path outputDir = ((FileOutputCommitter) getOutputCommitter(context)).getWorkPath();
+		final FileSystem fs = outputDir.getFileSystem(conf);
+		final long maxSize = conf.getLong(HConstants.HREGION_MAX_FILESIZE, HConstants.DEFAULT_MAX_FILE_SIZE);
+		final byte[] now = Bytes.toBytes(System.currentTimeMillis());
+		final List<String> tables = MultiTableOutput.fromConf(conf).getTableNames();
+		// HFiles written by a task must not use the block cache
+		Configuration writerConf = new Configuration(conf);
+		writerConf.setFloat(HConstants.HFILE_BLOCK_CACHE_SIZE_KEY, 0.0f);
+		final CacheConfig cacheConf = new CacheConfig(writerConf);
+		final InetSocketAddress favoredNode = favoredNode(conf, context.getTaskAttemptID().getTaskID().getId());
+
+		return new RecordWriter<ImmutableBytesWritable, Cell>() {
+			private final Map<String, WriterState> writers = new HashMap<String, WriterState>();
+			private final Map<Integer, Map<String, FamilySpec>> families = new HashMap<Integer, Map<String, FamilySpec>>();
+
+			@Override
+			public void write(ImmutableBytesWritable key, Cell cell) throws IOException {
+				int table = key.get()[key.getOffset()] & 0xff;
+				KeyValue kv = cell instanceof KeyValue ? (KeyValue) cell : KeyValueUtil.copyToNewKeyValue(cell);
+				kv.updateLatestStamp(now);
+				String family = Bytes.toString(CellUtil.cloneFamily(kv));
+				byte[] row = CellUtil.cloneRow(kv);
+
+				String writerKey = table + "/" + family;
+				WriterState state = writers.get(writerKey);
+				if (state != null && state.written >= maxSize && !Bytes.equals(state.lastRow, row)) {
+					close(state);
+					state = null;
+				}
+				if (state == null) {
+					state = new WriterState();
+					state.writer = createWriter(table, family);
+					writers.put(writerKey, state);
+				}
+				state.writer.append(kv);
+				state.written += kv.getLength();
+				state.lastRow = row;
+			}
+
+			@Override
+			public void close(TaskAttemptContext c) throws IOException {
+				for (WriterState state : writers.values()) {
+					close(state);
+				}
+				writers.clear();
+			}
+
+			private StoreFile.Writer createWriter(int table, String family) throws IOException {
+				FamilySpec spec = familySpec(table, family);
+				HFileContext fileContext = new HFileContextBuilder()
+						.withCompression(spec.compression)
+						.withChecksumType(HStore.getChecksumType(conf))
+						.withBytesPerCheckSum(HStore.getBytesPerChecksum(conf))
+						.withBlockSize(spec.blockSize)
+						.withDataBlockEncoding(spec.encoding)
+						.build();
+				Path familyDir = new Path(new Path(outputDir, tables.get(table)), family);
+				fs.mkdirs(familyDir);
+				StoreFile.WriterBuilder builder = new StoreFile.WriterBuilder(conf, cacheConf, fs)
+						.withOutputDir(familyDir)
+						.withBloomType(spec.bloomType)
+						.withComparator(KeyValue.COMPARATOR)
+						.withFileContext(fileContext);
+				if (favoredNode != null) {
+					builder.withFavoredNodes(new InetSocketAddress[] { favoredNode });
+				}
+				return builder.build();
+			}
+
+			private FamilySpec familySpec(int table, String family) {
+				Map<String, FamilySpec> specs = families.get(table);
+				if (specs == null) {
+					specs = parseFamilies(conf.get(MultiTableOutput.FAMILIES_KEY_PREFIX + table, ""));
+					families.put(table, specs);
+				}
+				FamilySpec spec = specs.get(family);
+				return spec != null ? spec : new FamilySpec();
+			}
+
+			private void close(WriterState state) throws IOException {
+				StoreFile.Writer w = state.writer;
+				w.appendFileInfo(StoreFile.BULKLOAD_TIME_KEY, Bytes.toBytes(System.currentTimeMillis()));
+				w.appendFileInfo(StoreFile.BULKLOAD_TASK_KEY, Bytes.toBytes(context.getTaskAttemptID().toString()));
+				w.appendFileInfo(StoreFile.MAJOR_COMPACTION_KEY, Bytes.toBytes(true));
+				w.appendFileInfo(StoreFile.EXCLUDE_FROM_MINOR_COMPACTION_KEY, Bytes.toBytes(false));
+				w.appendTrackedTimestampsToMetadata();
+				w.close();
+			}
+		};
+	}
+
+	/**
+	 * Record the favored node of every reduce partition. Each partition is one
+	 * region, so its node is the datanode on the host serving that region.
+	 * @param conf
+	 * @param hosts region server host of each partition, or null if unknown
+	 * @throws IOException
+	 */
+	static void setFavoredNodes(Configuration conf, List<String> hosts) throws IOException {
+		int port = conf.getInt(DATANODE_PORT_KEY, -1);
+		Map<String, Integer> ports = port < 0 ? datanodePorts(conf) : new HashMap<String, Integer>();
+		StringBuilder nodes = new StringBuilder();
+		int missing = 0;
+		for (int i = 0; i < hosts.size(); i++) {
+			if (i > 0) {
+				nodes.append(',');
+			}
+			String host = hosts.get(i);
+			Integer hostPort = port >= 0 ? Integer.valueOf(port) : ports.get(host);
+			if (host == null || hostPort == null) {
+				missing++;
+				continue;
+			}
+			nodes.append(host).append(':').append(hostPort);
+		}
+		if (missing > 0) {
+			System.err.println("WARNING: no favored node for " + missing + " of " + hosts.size()
+					+ " regions; set " + DATANODE_PORT_KEY + " if their hosts are missing from the datanode report");
+		}
+		conf.set(PARTITION_NODES_KEY, nodes.toString());
+	}
+
+	/**
+	 * @return data transfer port of each datanode, by host name and address,
+	 *         or none if the datanode report cannot be read
+	 */
+	private static Map<String, Integer> datanodePorts(Configuration conf) throws IOException {
+		Map<String, Integer> ports = new HashMap<String, Integer>();
+		FileSystem fs = FileSystem.get(conf);
+		if (fs instanceof DistributedFileSystem) {
+			try {
+				for (DatanodeInfo datanode : ((DistributedFileSystem) fs).getDataNodeStats()) {
+					ports.put(datanode.getHostName(), datanode.getXferPort());
+					ports.put(datanode.getIpAddr(), datanode.getXferPort());
+				}
+			} catch (IOException e) {
+				System.err.println("WARNING: cannot read the datanode report: " + e.getMessage());
+			}
+		}
+		return ports;
+	}
+
+	/**
+	 * @return the favored node of a reduce partition, or null if it has none
+	 */
+	static InetSocketAddress favoredNode(Configuration conf, int partition) {
+		String[] nodes = conf.get(PARTITION_NODES_KEY, "").split(",", -1);
+		if (partition >= nodes.length || nodes[partition].isEmpty()) {
+			return null;
+		}
+		InetSocketAddress node = NetUtils.createSocketAddr(nodes[partition]);
+		return node.isUnresolved() ? null : node;
+	}
+
+	static Map<String, FamilySpec> parseFamilies(String description) {
+		Map<String, FamilySpec> specs = new HashMap<String, FamilySpec>();
+		for (String family : description.split(",")) {
+			String[] parts = family.split(":");
+			if (parts.length != 5) {
+				continue;
+			}
+			FamilySpec spec = new FamilySpec();
+			spec.compression = Compression.getCompressionAlgorithmByName(parts[1]);
+			spec.bloomType = BloomType.valueOf(parts[2]);
+			spec.blockSize = Integer.parseInt(parts[3]);
+			spec.encoding = DataBlockEncoding.valueOf(parts[4]);
+			specs.put(parts[0], spec);
+		}
+		return specs;
+	}
+}
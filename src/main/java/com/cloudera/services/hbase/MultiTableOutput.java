@@ -0,0 +1,415 @@
+package com.cloudera.services.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Admin;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.mapreduce.PutSortReducer;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.lib.partition.TotalOrderPartitioner;
+
+/**
+ * Writes HFiles for several tables in one pass over the input. Configured as
+ *
+ * <pre>
+ * bulkload.tables=qualys:0,1,2,3;qualys_by_state:3,2,0,1
+ * </pre>
+ *
+ * where each table lists the order in which the four natural key fields are
+ * fed to {@link RowKeyConverter}. Map output keys are prefixed with the
+ * table's index, the reducers are partitioned over every table's regions and
+ * {@link MultiTableHFileOutputFormat} writes each table's HFiles to
+ * <code>&lt;output&gt;/&lt;table&gt;</code>, which are all loaded at the end.
+ * The tables are loaded one after another, index tables first, so the load
+ * is not atomic across tables but a reader never finds an index row whose
+ * data row is missing; it can only miss the index rows of data still being
+ * loaded. Every table's manifest is written before the first load, so
+ * <code>--resume</code> finishes all of them after a failure.
+ * <p>
+ * Secondary index tables on a single column are declared with
+ *
+ * <pre>
+ * bulkload.index=qualys_by_state:3;qualys_by_company:2:covering
+ * </pre>
+ *
+ * Each index row is keyed by the column value, a zero byte and the row key of
+ * the first data table, and holds one empty cell, or a copy of the row's
+ * cells when the index is covering. Index tables are append-only: the index
+ * row a record replaces is never deleted, since its old value is not known
+ * to the job, so they cannot be combined with {@link RowOperations}, and a
+ * record must not change the indexed column of a row that is already loaded.
+ */
+public class MultiTableOutput {
+
+	public static final String TABLES_KEY = "bulkload.tables";
+	public static final String INDEX_KEY = "bulkload.index";
+	public static final String INDEX_FAMILY_KEY = "bulkload.index.family";
+	static final String FAMILIES_KEY_PREFIX = "bulkload.tables.families.";
+	static final byte[] COLUMN_FAMILY_CURRENT = Bytes.toBytes("c");
+
+	static class Target {
+		final String table;
+		final int[] keyFields;
+		/** indexed column, or -1 for a data table */
+		final int indexColumn;
+		final boolean covering;
+
+		Target(String table, int[] keyFields) {
+			this(table, keyFields, -1, false);
+		}
+
+		Target(String table, int[] keyFields, int indexColumn, boolean covering) {
+			this.table = table;
+			this.keyFields = keyFields;
+			this.indexColumn = indexColumn;
+			this.covering = covering;
+		}
+	}
+
+	private final List<Target> targets = new ArrayList<Target>();
+	private byte[] indexFamily;
+	/** buffered index row of each (index table, data row), while deduplicating */
+	private final Map<ImmutableBytesWritable, ImmutableBytesWritable> indexRows =
+			new HashMap<ImmutableBytesWritable, ImmutableBytesWritable>();
+	private long indexRowsFlushes;
+
+	/**
+	 * @return the configured tables, or null if multi-table output is disabled
+	 */
+	public static MultiTableOutput fromConf(Configuration conf) {
+		String spec = conf.getTrimmed(TABLES_KEY);
+		if (spec == null || spec.isEmpty()) {
+			return null;
+		}
+		MultiTableOutput output = new MultiTableOutput();
+		output.indexFamily = Bytes.toBytes(conf.get(INDEX_FAMILY_KEY, "c"));
+		for (String table : spec.split(";")) {
+			String[] parts = table.trim().split(":");
+			int[] keyFields = { 0, 1, 2, 3 };
+			if (parts.length > 1) {
+				String[] fields = parts[1].split(",");
+				if (fields.length != keyFields.length) {
+					throw new IllegalArgumentException("Bad " + TABLES_KEY + " entry: " + table);
+				}
+				for (int i = 0; i < fields.length; i++) {
+					keyFields[i] = Integer.parseInt(fields[i].trim());
+				}
+			}
+			output.targets.add(new Target(parts[0].trim(), keyFields));
+		}
+		String indexes = conf.getTrimmed(INDEX_KEY);
+		if (indexes != null && !indexes.isEmpty()) {
+			for (String index : indexes.split(";")) {
+				String[] parts = index.trim().split(":");
+				if (parts.length < 2 || parts.length > 3 || (parts.length == 3 && !"covering".equals(parts[2].trim()))) {
+					throw new IllegalArgumentException("Bad " + INDEX_KEY + " entry: " + index);
+				}
+				output.targets.add(new Target(parts[0].trim(), null,
+						Integer.parseInt(parts[1].trim()), parts.length == 3));
+			}
+		}
+		if (output.targets.get(0).indexColumn >= 0) {
+			throw new IllegalArgumentException(TABLES_KEY + " must name at least one data table");
+		}
+		if (output.targets.get(output.targets.size() - 1).indexColumn >= 0 && RowOperations.isEnabled(conf)) {
+			throw new IllegalArgumentException(INDEX_KEY + " cannot be combined with " + RowOperations.ENABLED_KEY);
+		}
+		if (output.targets.size() > 256) {
+			throw new IllegalArgumentException(TABLES_KEY + " supports at most 256 tables");
+		}
+		return output;
+	}
+
+	/**
+	 * As {@link #fromConf(Configuration)}, but when only index tables or
+	 * favored nodes are configured the importer's own table becomes the single
+	 * data table, since only {@link MultiTableHFileOutputFormat} supports
+	 * either. The choice is written back to the configuration so the tasks
+	 * see it too.
+	 * @param conf
+	 * @param defaultTable
+	 * @return
+	 */
+	public static MultiTableOutput fromConf(Configuration conf, String defaultTable) {
+		String indexes = conf.getTrimmed(INDEX_KEY);
+		boolean needed = (indexes != null && !indexes.isEmpty())
+				|| conf.getBoolean(MultiTableHFileOutputFormat.FAVORED_NODES_KEY, false);
+		if (conf.getTrimmed(TABLES_KEY) == null && needed) {
+			System.out.println("Writing HFiles through the multi-table output for " + INDEX_KEY + " or "
+					+ MultiTableHFileOutputFormat.FAVORED_NODES_KEY + ": they go to <output>/" + defaultTable
+					+ " and the packed shuffle is not used");
+			conf.set(TABLES_KEY, defaultTable);
+		}
+		return fromConf(conf);
+	}
+
+	public List<String> getTableNames() {
+		List<String> names = new ArrayList<String>();
+		for (Target target : targets) {
+			names.add(target.table);
+		}
+		return names;
+	}
+
+	/**
+	 * Emit one copy of the row per data table, keyed by that table's row key,
+	 * and one row per index table. When deduplicating, a record that replaces
+	 * a buffered row also drops the index rows of the replaced record; index
+	 * rows already flushed to the shuffle are kept.
+	 * @param keyFields the four natural key fields of the record
+	 * @param put the row's cells
+	 * @param md5 optional digest cache for the key fields
+	 * @param dedup optional in-mapper combiner
+	 * @param context
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void write(byte[][] keyFields, Put put, Md5Cache md5, DedupBuffer dedup,
+			TaskInputOutputContext<?, ?, ImmutableBytesWritable, Put> context)
+			throws IOException, InterruptedException {
+		if (dedup != null && dedup.getFlushes() != indexRowsFlushes) {
+			indexRows.clear();
+			indexRowsFlushes = dedup.getFlushes();
+		}
+		byte[] dataRow = null;
+		for (int i = 0; i < targets.size(); i++) {
+			Target target = targets.get(i);
+			byte[] row;
+			Put copy;
+			if (target.indexColumn < 0) {
+				int[] order = target.keyFields;
+				row = RowKeyConverter.makeRowKey(md5, keyFields[order[0]], keyFields[order[1]],
+						keyFields[order[2]], keyFields[order[3]]);
+				if (dataRow == null) {
+					dataRow = row;
+				}
+				copy = new Put(row);
+				copyCells(put, copy);
+				RowOperations.copyOp(put, copy);
+			} else {
+				ImmutableBytesWritable owner = dedup != null ? new ImmutableBytesWritable(tag(i, dataRow)) : null;
+				List<Cell> indexed = put.get(COLUMN_FAMILY_CURRENT, Bytes.toBytes(target.indexColumn));
+				if (indexed.isEmpty()) {
+					if (owner != null) {
+						dropIndexRow(owner, null, dedup);
+					}
+					continue;
+				}
+				row = indexRow(CellUtil.cloneValue(indexed.get(0)), dataRow);
+				copy = new Put(row);
+				if (target.covering) {
+					copyCells(put, copy);
+				} else {
+					copy.addColumn(indexFamily, HConstants.EMPTY_BYTE_ARRAY, HConstants.EMPTY_BYTE_ARRAY);
+				}
+				if (owner != null) {
+					ImmutableBytesWritable key = new ImmutableBytesWritable(tag(i, row));
+					dropIndexRow(owner, key, dedup);
+					indexRows.put(owner, key);
+				}
+			}
+			ImmutableBytesWritable key = new ImmutableBytesWritable(tag(i, row));
+			if (dedup != null) {
+				dedup.add(key, copy, context);
+			} else {
+				context.write(key, copy);
+			}
+		}
+	}
+
+	/**
+	 * Remove the buffered index row of a data row unless it is the one about to be written
+	 */
+	private void dropIndexRow(ImmutableBytesWritable owner, ImmutableBytesWritable current, DedupBuffer dedup) {
+		ImmutableBytesWritable previous = indexRows.remove(owner);
+		if (previous != null && !previous.equals(current)) {
+			dedup.remove(previous);
+		}
+	}
+
+	/**
+	 * Partition the reducers over the regions of every table and write each
+	 * table's HFiles to its own directory. Call after
+	 * HFileOutputFormat2.configureIncrementalLoad, whose single-table settings
+	 * this replaces.
+	 * @param job
+	 * @param connection
+	 * @throws IOException
+	 */
+	public void configureJob(Job job, Connection connection) throws IOException {
+		Configuration conf = job.getConfiguration();
+		boolean favoredNodes = conf.getBoolean(MultiTableHFileOutputFormat.FAVORED_NODES_KEY, false);
+		List<ImmutableBytesWritable> splitPoints = new ArrayList<ImmutableBytesWritable>();
+		// region server of each region, in partition order
+		List<String> hosts = new ArrayList<String>();
+		Admin admin = connection.getAdmin();
+		try {
+			for (int i = 0; i < targets.size(); i++) {
+				TableName tableName = TableName.valueOf(targets.get(i).table);
+				RegionLocator locator = SplitPoints.locator(conf, connection, tableName);
+				try {
+					TreeMap<byte[], String> hostsByStartKey = new TreeMap<byte[], String>(Bytes.BYTES_COMPARATOR);
+					if (favoredNodes) {
+						for (HRegionLocation location : locator.getAllRegionLocations()) {
+							hostsByStartKey.put(location.getRegionInfo().getStartKey(), location.getHostname());
+						}
+					}
+					for (byte[] startKey : locator.getStartKeys()) {
+						splitPoints.add(new ImmutableBytesWritable(tag(i, startKey)));
+						Map.Entry<byte[], String> host = hostsByStartKey.floorEntry(startKey);
+						hosts.add(host != null ? host.getValue() : null);
+					}
+				} finally {
+					locator.close();
+				}
+				conf.set(FAMILIES_KEY_PREFIX + i, describeFamilies(admin.getTableDescriptor(tableName)));
+			}
+		} finally {
+			admin.close();
+		}
+		// the first region of the first table takes everything below the first split point
+		splitPoints.remove(0);
+		if (favoredNodes) {
+			MultiTableHFileOutputFormat.setFavoredNodes(conf, hosts);
+		}
+
+		Path partitionsPath = new Path(conf.get("hbase.fs.tmp.dir"), "partitions_" + UUID.randomUUID());
+		FileSystem fs = partitionsPath.getFileSystem(conf);
+		partitionsPath = fs.makeQualified(partitionsPath);
+		SequenceFile.Writer writer = SequenceFile.createWriter(conf,
+				SequenceFile.Writer.file(partitionsPath),
+				SequenceFile.Writer.keyClass(ImmutableBytesWritable.class),
+				SequenceFile.Writer.valueClass(NullWritable.class));
+		try {
+			for (ImmutableBytesWritable splitPoint : splitPoints) {
+				writer.append(splitPoint, NullWritable.get());
+			}
+		} finally {
+			writer.close();
+		}
+		fs.deleteOnExit(partitionsPath);
+
+		TotalOrderPartitioner.setPartitionFile(conf, partitionsPath);
+		job.setPartitionerClass(TotalOrderPartitioner.class);
+		job.setNumReduceTasks(splitPoints.size() + 1);
+		job.setReducerClass(PutSortReducer.class);
+		job.setOutputKeyClass(ImmutableBytesWritable.class);
+		job.setOutputValueClass(KeyValue.class);
+		job.setOutputFormatClass(MultiTableHFileOutputFormat.class);
+	}
+
+	/**
+	 * Bulk load every table's HFiles from its directory under the job output,
+	 * index tables first. Every table's manifest is written before the first
+	 * table is loaded.
+	 * @param conf
+	 * @param connection
+	 * @param fs
+	 * @param outputDir
+	 * @throws Exception
+	 */
+	public void load(Configuration conf, Connection connection, FileSystem fs, Path outputDir)
+			throws Exception {
+		Map<Path, TableName> tableDirs = new LinkedHashMap<Path, TableName>();
+		for (Target target : targets) {
+			Path tableDir = new Path(outputDir, target.table);
+			if (fs.exists(tableDir)) {
+				tableDirs.put(tableDir, TableName.valueOf(target.table));
+			}
+		}
+		BulkLoadManifest.load(conf, connection, fs, indexesFirst(conf, tableDirs));
+	}
+
+	/**
+	 * @return the table dirs with the index tables named in the configuration moved to the front
+	 */
+	static Map<Path, TableName> indexesFirst(Configuration conf, Map<Path, TableName> tableDirs) {
+		Set<String> indexTables = new HashSet<String>();
+		String indexes = conf.getTrimmed(INDEX_KEY);
+		if (indexes != null && !indexes.isEmpty()) {
+			for (String index : indexes.split(";")) {
+				indexTables.add(TableName.valueOf(index.trim().split(":")[0].trim()).getNameAsString());
+			}
+		}
+		Map<Path, TableName> ordered = new LinkedHashMap<Path, TableName>();
+		for (Map.Entry<Path, TableName> tableDir : tableDirs.entrySet()) {
+			if (indexTables.contains(tableDir.getValue().getNameAsString())) {
+				ordered.put(tableDir.getKey(), tableDir.getValue());
+			}
+		}
+		ordered.putAll(tableDirs);
+		return ordered;
+	}
+
+	private static void copyCells(Put from, Put to) {
+		for (List<Cell> cells : from.getFamilyCellMap().values()) {
+			for (Cell cell : cells) {
+				to.addColumn(CellUtil.cloneFamily(cell), CellUtil.cloneQualifier(cell),
+						cell.getTimestamp(), CellUtil.cloneValue(cell));
+			}
+		}
+	}
+
+	/**
+	 * @return the index row for a column value: value, a zero byte, then the data row key
+	 */
+	public static byte[] indexRow(byte[] value, byte[] dataRow) {
+		byte[] row = new byte[value.length + 1 + dataRow.length];
+		int offset = Bytes.putBytes(row, 0, value, 0, value.length);
+		row[offset++] = 0;
+		Bytes.putBytes(row, offset, dataRow, 0, dataRow.length);
+		return row;
+	}
+
+	static byte[] tag(int index, byte[] row) {
+		byte[] tagged = new byte[row.length + 1];
+		tagged[0] = (byte) index;
+		Bytes.putBytes(tagged, 1, row, 0, row.length);
+		return tagged;
+	}
+
+	/**
+	 * @return name:compression:bloom:blocksize:encoding for each family, comma separated
+	 */
+	static String describeFamilies(HTableDescriptor htd) {
+		StringBuilder families = new StringBuilder();
+		for (HColumnDescriptor family : htd.getColumnFamilies()) {
+			if (families.length() > 0) {
+				families.append(',');
+			}
+			families.append(family.getNameAsString()).append(':')
+					.append(family.getCompressionType().getName()).append(':')
+					.append(family.getBloomFilterType().name()).append(':')
+					.append(family.getBlocksize()).append(':')
+					.append(family.getDataBlockEncoding().name());
+		}
+		return families.toString();
+	}
+}
@@ -0,0 +1,156 @@
+package com.cloudera.services.hbase;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+
+/**
+ * Client lookups by the four natural key fields the importers hash into the
+ * row key. Keys are built with {@link RowKeyConverter}, grouped by the region
+ * serving them, and fetched as single-region multi-Gets of up to
+ * <code>bulkload.lookup.batch</code> rows, run in parallel on
+ * <code>bulkload.lookup.threads</code> threads:
+ *
+ * <pre>
+ * NaturalKeyLookup lookup = new NaturalKeyLookup(connection, TableName.valueOf("qualys"), conf);
+ * Result[] rows = lookup.get(keys);
+ * </pre>
+ *
+ * With <code>bulkload.lookup.cache.rows</code> set, up to that many found rows
+ * are kept in a least recently used cache. Cached rows do not see later loads,
+ * so only enable it for data that is not updated in place. Thread safe.
+ */
+public class NaturalKeyLookup {
+
+	public static final String THREADS_KEY = "bulkload.lookup.threads";
+	public static final String BATCH_KEY = "bulkload.lookup.batch";
+	public static final String CACHE_ROWS_KEY = "bulkload.lookup.cache.rows";
+
+	private final Connection connection;
+	private final TableName tableName;
+	private final RegionLocator locator;
+	private final ExecutorService pool;
+	private final int batchSize;
+	private final Map<ImmutableBytesWritable, Result> cache;
+
+	public NaturalKeyLookup(Connection connection, TableName tableName, Configuration conf) throws IOException {
+		this.connection = connection;
+		this.tableName = tableName;
+		this.locator = connection.getRegionLocator(tableName);
+		this.pool = Executors.newFixedThreadPool(conf.getInt(THREADS_KEY, 8));
+		this.batchSize = Math.max(1, conf.getInt(BATCH_KEY, 100));
+		final int cacheRows = conf.getInt(CACHE_ROWS_KEY, 0);
+		this.cache = cacheRows <= 0 ? null : Collections.synchronizedMap(
+				new LinkedHashMap<ImmutableBytesWritable, Result>(16, 0.75f, true) {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					protected boolean removeEldestEntry(Map.Entry<ImmutableBytesWritable, Result> eldest) {
+						return size() > cacheRows;
+					}
+				});
+	}
+
+	/**
+	 * @return the row key the importers write for these fields
+	 */
+	public static byte[] rowKey(String f1, String f2, String f3, String f4) {
+		return RowKeyConverter.makeRowKey(f1.getBytes(), f2.getBytes(), f3.getBytes(), f4.getBytes());
+	}
+
+	public Result get(String f1, String f2, String f3, String f4) throws IOException {
+		return get(Collections.singletonList(new String[] { f1, f2, f3, f4 }))[0];
+	}
+
+	/**
+	 * @param keys the four natural key fields of each row
+	 * @return the rows in the order of the keys; an empty Result where a row does not exist
+	 * @throws IOException
+	 */
+	public Result[] get(List<String[]> keys) throws IOException {
+		Result[] results = new Result[keys.size()];
+		// pending Gets per region, and where their results go
+		Map<String, List<Get>> gets = new LinkedHashMap<String, List<Get>>();
+		Map<String, List<Integer>> slots = new LinkedHashMap<String, List<Integer>>();
+		for (int i = 0; i < results.length; i++) {
+			String[] fields = keys.get(i);
+			if (fields.length != 4) {
+				throw new IllegalArgumentException("Expected 4 key fields, got " + fields.length);
+			}
+			byte[] row = rowKey(fields[0], fields[1], fields[2], fields[3]);
+			if (cache != null) {
+				results[i] = cache.get(new ImmutableBytesWritable(row));
+				if (results[i] != null) {
+					continue;
+				}
+			}
+			String region = locator.getRegionLocation(row).getRegionInfo().getEncodedName();
+			if (!gets.containsKey(region)) {
+				gets.put(region, new ArrayList<Get>());
+				slots.put(region, new ArrayList<Integer>());
+			}
+			gets.get(region).add(new Get(row));
+			slots.get(region).add(i);
+		}
+
+		List<Future<Result[]>> batches = new ArrayList<Future<Result[]>>();
+		List<List<Integer>> batchSlots = new ArrayList<List<Integer>>();
+		for (String region : gets.keySet()) {
+			List<Get> regionGets = gets.get(region);
+			for (int start = 0; start < regionGets.size(); start += batchSize) {
+				final List<Get> batch = regionGets.subList(start, Math.min(start + batchSize, regionGets.size()));
+				batches.add(pool.submit(new Callable<Result[]>() {
+					public Result[] call() throws IOException {
+						Table table = connection.getTable(tableName);
+						try {
+							return table.get(batch);
+						} finally {
+							table.close();
+						}
+					}
+				}));
+				batchSlots.add(slots.get(region).subList(start, start + batch.size()));
+			}
+		}
+		try {
+			for (int b = 0; b < batches.size(); b++) {
+				Result[] fetched = batches.get(b).get();
+				List<Integer> positions = batchSlots.get(b);
+				for (int j = 0; j < fetched.length; j++) {
+					results[positions.get(j)] = fetched[j];
+					if (cache != null && !fetched[j].isEmpty()) {
+						cache.put(new ImmutableBytesWritable(fetched[j].getRow()), fetched[j]);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted looking up rows of " + tableName);
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+		return results;
+	}
+
+	public void close() throws IOException {
+		pool.shutdown();
+		locator.close();
+	}
+}
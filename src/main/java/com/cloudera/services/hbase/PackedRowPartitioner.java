@@ -0,0 +1,67 @@
+package com.cloudera.services.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.lib.partition.TotalOrderPartitioner;
+
+/**
+ * Routes packed rows to the reducer of the region that holds them, using the
+ * region split points HFileOutputFormat2 wrote for TotalOrderPartitioner.
+ */
+public class PackedRowPartitioner extends Partitioner<PackedRowWritable, NullWritable>
+		implements Configurable {
+
+	private Configuration conf;
+	private byte[][] splitPoints;
+
+	public void setConf(Configuration conf) {
+		this.conf = conf;
+		try {
+			splitPoints = readSplitPoints(conf);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Can't read partitions file", e);
+		}
+	}
+
+	public Configuration getConf() {
+		return conf;
+	}
+
+	@Override
+	public int getPartition(PackedRowWritable key, NullWritable value, int numPartitions) {
+		byte[] row = key.getRow();
+		int pos = Bytes.binarySearch(splitPoints, row, 0, row.length, Bytes.BYTES_RAWCOMPARATOR);
+		return pos < 0 ? -(pos + 1) : pos + 1;
+	}
+
+	/**
+	 * @param conf
+	 * @return the region start keys in the partitions file, excluding the first region's
+	 * @throws IOException
+	 */
+	static byte[][] readSplitPoints(Configuration conf) throws IOException {
+		Path partitionFile = new Path(TotalOrderPartitioner.getPartitionFile(conf));
+		List<byte[]> splits = new ArrayList<byte[]>();
+		SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(
+				partitionFile.getFileSystem(conf).makeQualified(partitionFile)));
+		try {
+			ImmutableBytesWritable key = new ImmutableBytesWritable();
+			while (reader.next(key, NullWritable.get())) {
+				splits.add(key.copyBytes());
+			}
+		} finally {
+			reader.close();
+		}
+		return splits.toArray(new byte[splits.size()][]);
+	}
+}
@@ -0,0 +1,75 @@
+package com.cloudera.services.hbase;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.Reducer;
+
+/**
+ * Turns packed rows back into sorted KeyValues for HFileOutputFormat2. When a
+ * row arrives more than once, the first value seen for a qualifier wins, as
+ * with PutSortReducer.
+ */
+public class PackedRowReducer extends
+		Reducer<PackedRowWritable, NullWritable, ImmutableBytesWritable, KeyValue> {
+	static final byte[] COLUMN_FAMILY_CURRENT = Bytes.toBytes("c");
+
+	private final SortedMap<Integer, byte[]> cells = new TreeMap<Integer, byte[]>();
+	private MembershipCollector membership;
+	private AllocationMeter meter;
+	private ChecksumCollector checksums;
+
+	@Override
+	protected void setup(Context context) {
+		membership = MembershipCollector.fromConf(context.getConfiguration());
+		meter = AllocationMeter.fromConf(context.getConfiguration(), false);
+		checksums = ChecksumCollector.fromConf(context.getConfiguration());
+	}
+
+	@Override
+	protected void reduce(PackedRowWritable key, Iterable<NullWritable> values, Context context)
+			throws IOException, InterruptedException {
+		if (meter != null) {
+			meter.tick();
+		}
+		cells.clear();
+		// the key is refilled with each grouped record as the values are iterated
+		for (NullWritable ignored : values) {
+			key.collectCells(cells);
+		}
+		byte[] row = key.getRow();
+		if (membership != null) {
+			membership.add(row, 0, row.length);
+		}
+		if (checksums != null) {
+			checksums.startRow(row, 0, row.length);
+		}
+		ImmutableBytesWritable outKey = new ImmutableBytesWritable(row);
+		for (Map.Entry<Integer, byte[]> cell : cells.entrySet()) {
+			KeyValue kv = new KeyValue(row, COLUMN_FAMILY_CURRENT, Bytes.toBytes(cell.getKey()), cell.getValue());
+			if (checksums != null) {
+				checksums.add(kv);
+			}
+			context.write(outKey, kv);
+		}
+	}
+
+	@Override
+	protected void cleanup(Context context) throws IOException, InterruptedException {
+		if (membership != null) {
+			membership.close(context);
+		}
+		if (checksums != null) {
+			checksums.close(context);
+		}
+		if (meter != null) {
+			meter.report(context);
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package com.cloudera.services.hbase;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.SortedMap;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.Job;
+
+/**
+ * Compact map output for the importers: a row key and its cells, each a
+ * qualifier index and a value, packed into one length-prefixed buffer:
+ *
+ * <pre>
+ * [vint length][row length: 2][row][vint qualifier index][vint value length][value]...
+ * </pre>
+ *
+ * The registered {@link Comparator} orders records by row straight from the
+ * serialized bytes, so the shuffle never deserializes a record to sort it.
+ * Only the Text and CSV importers have a packed mapper, and they fall back to
+ * Puts with multi-table output, streaming, row operations or deduplication.
+ */
+public class PackedRowWritable implements WritableComparable<PackedRowWritable> {
+
+	public static final String ENABLED_KEY = "bulkload.shuffle.packed";
+
+	private byte[] buffer = new byte[128];
+	private int length;
+
+	static {
+		WritableComparator.define(PackedRowWritable.class, new Comparator());
+	}
+
+	/**
+	 * Start a new record for the given row, discarding any previous cells
+	 * @param row
+	 */
+	public void set(byte[] row) {
+		length = 0;
+		ensureCapacity(2 + row.length);
+		length = Bytes.putShort(buffer, 0, (short) row.length);
+		length = Bytes.putBytes(buffer, length, row, 0, row.length);
+	}
+
+	public void addCell(int qualifierIndex, byte[] value) {
+		if (qualifierIndex < 0) {
+			throw new IllegalArgumentException("Negative qualifier index " + qualifierIndex);
+		}
+		ensureCapacity(length + 10 + value.length);
+		length = putVInt(buffer, length, qualifierIndex);
+		length = putVInt(buffer, length, value.length);
+		length = Bytes.putBytes(buffer, length, value, 0, value.length);
+	}
+
+	public byte[] getRow() {
+		return Arrays.copyOfRange(buffer, 2, 2 + rowLength(buffer, 0));
+	}
+
+	/**
+	 * Add this record's cells to <code>cells</code>, keyed by qualifier index.
+	 * A qualifier already present keeps its value.
+	 * @param cells
+	 */
+	public void collectCells(SortedMap<Integer, byte[]> cells) {
+		int offset = 2 + rowLength(buffer, 0);
+		while (offset < length) {
+			int qualifierIndex = getVInt(buffer, offset);
+			offset += WritableUtils.decodeVIntSize(buffer[offset]);
+			int valueLength = getVInt(buffer, offset);
+			offset += WritableUtils.decodeVIntSize(buffer[offset]);
+			if (!cells.containsKey(qualifierIndex)) {
+				cells.put(qualifierIndex, Arrays.copyOfRange(buffer, offset, offset + valueLength));
+			}
+			offset += valueLength;
+		}
+	}
+
+	public void write(DataOutput out) throws IOException {
+		WritableUtils.writeVInt(out, length);
+		out.write(buffer, 0, length);
+	}
+
+	public void readFields(DataInput in) throws IOException {
+		length = 0;
+		int newLength = WritableUtils.readVInt(in);
+		ensureCapacity(newLength);
+		in.readFully(buffer, 0, newLength);
+		length = newLength;
+	}
+
+	public int compareTo(PackedRowWritable other) {
+		return compareRows(buffer, 0, other.buffer, 0);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return obj instanceof PackedRowWritable && compareTo((PackedRowWritable) obj) == 0;
+	}
+
+	@Override
+	public int hashCode() {
+		return Bytes.hashCode(buffer, 2, rowLength(buffer, 0));
+	}
+
+	/**
+	 * Switch a job configured by HFileOutputFormat2.configureIncrementalLoad
+	 * over to packed map output. The mapper must emit PackedRowWritable keys
+	 * with NullWritable values.
+	 * @param job
+	 */
+	public static void configureJob(Job job) {
+		job.setMapOutputKeyClass(PackedRowWritable.class);
+		job.setMapOutputValueClass(NullWritable.class);
+		job.setPartitionerClass(PackedRowPartitioner.class);
+		job.setReducerClass(PackedRowReducer.class);
+	}
+
+	/** Compares the serialized row keys only. */
+	public static class Comparator extends WritableComparator {
+
+		public Comparator() {
+			super(PackedRowWritable.class);
+		}
+
+		@Override
+		public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+			int n1 = WritableUtils.decodeVIntSize(b1[s1]);
+			int n2 = WritableUtils.decodeVIntSize(b2[s2]);
+			return compareRows(b1, s1 + n1, b2, s2 + n2);
+		}
+	}
+
+	private static int compareRows(byte[] b1, int s1, byte[] b2, int s2) {
+		return Bytes.compareTo(b1, s1 + 2, rowLength(b1, s1), b2, s2 + 2, rowLength(b2, s2));
+	}
+
+	private static int rowLength(byte[] b, int offset) {
+		return Bytes.toShort(b, offset) & 0xffff;
+	}
+
+	private static int putVInt(byte[] b, int offset, int i) {
+		if (i >= -112 && i <= 127) {
+			b[offset] = (byte) i;
+			return offset + 1;
+		}
+		// same encoding as WritableUtils.writeVLong, for non-negative values
+		int len = -112;
+		for (long tmp = i; tmp != 0; tmp >>= 8) {
+			len--;
+		}
+		b[offset++] = (byte) len;
+		len = -(len + 112);
+		for (int idx = len; idx != 0; idx--) {
+			b[offset++] = (byte) ((i >> ((idx - 1) * 8)) & 0xFF);
+		}
+		return offset;
+	}
+
+	private static int getVInt(byte[] b, int offset) {
+		int len = WritableUtils.decodeVIntSize(b[offset]);
+		if (len == 1) {
+			return b[offset];
+		}
+		int i = 0;
+		for (int idx = 1; idx < len; idx++) {
+			i = (i << 8) | (b[offset + idx] & 0xFF);
+		}
+		return i;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (buffer.length < capacity) {
+			buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+		}
+	}
+}
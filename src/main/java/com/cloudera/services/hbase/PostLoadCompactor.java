@@ -0,0 +1,217 @@
+package com.cloudera.services.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Admin;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.protobuf.generated.AdminProtos.GetRegionInfoResponse.CompactionState;
+import org.apache.hadoop.hbase.regionserver.HRegion;
+import org.apache.hadoop.hbase.util.FSUtils;
+
+/**
+ * Optional stage after a bulk load: reports the HDFS block locality and store
+ * file count of every region the load touched, and major compacts only the
+ * regions below <code>bulkload.compact.min.locality</code> or above
+ * <code>bulkload.compact.max.storefiles</code>. At most
+ * <code>bulkload.compact.concurrency</code> compactions run at a time. It runs
+ * once, after every table of the import has been loaded.
+ */
+public class PostLoadCompactor {
+
+	public static final String ENABLED_KEY = "bulkload.compact.enabled";
+	public static final String MIN_LOCALITY_KEY = "bulkload.compact.min.locality";
+	public static final String MAX_STORE_FILES_KEY = "bulkload.compact.max.storefiles";
+	public static final String CONCURRENCY_KEY = "bulkload.compact.concurrency";
+	public static final String POLL_MS_KEY = "bulkload.compact.poll.ms";
+	public static final String TIMEOUT_MS_KEY = "bulkload.compact.timeout.ms";
+
+	static class RegionStats {
+		HTableDescriptor htd;
+		HRegionLocation location;
+		float locality;
+		/** most store files in any one family */
+		int storeFiles;
+		/** family/name of every store file */
+		Set<String> files;
+		/** when the major compaction was requested */
+		long requested;
+	}
+
+	private final Configuration conf;
+	private final float minLocality;
+	private final int maxStoreFiles;
+	private final int concurrency;
+	private final long pollMillis;
+	private final long timeoutMillis;
+
+	public PostLoadCompactor(Configuration conf) {
+		this.conf = conf;
+		this.minLocality = conf.getFloat(MIN_LOCALITY_KEY, 0.8f);
+		this.maxStoreFiles = conf.getInt(MAX_STORE_FILES_KEY, 4);
+		this.concurrency = Math.max(1, conf.getInt(CONCURRENCY_KEY, 2));
+		this.pollMillis = conf.getLong(POLL_MS_KEY, 10000);
+		this.timeoutMillis = conf.getLong(TIMEOUT_MS_KEY, 60 * 60 * 1000);
+	}
+
+	/**
+	 * @return a compactor, or null if the post-load stage is disabled
+	 */
+	public static PostLoadCompactor fromConf(Configuration conf) {
+		return conf.getBoolean(ENABLED_KEY, false) ? new PostLoadCompactor(conf) : null;
+	}
+
+	/**
+	 * Report on and, where needed, compact the given regions of every table,
+	 * sharing the concurrency limit between the tables
+	 * @param regions encoded names of the regions touched by the load, by table
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void run(Map<TableName, ? extends Collection<String>> regions)
+			throws IOException, InterruptedException {
+		Connection connection = SharedConnection.acquire(conf);
+		try {
+			Admin admin = connection.getAdmin();
+			try {
+				List<RegionStats> queue = new ArrayList<RegionStats>();
+				for (Map.Entry<TableName, ? extends Collection<String>> table : regions.entrySet()) {
+					queue.addAll(check(connection, admin, table.getKey(), table.getValue()));
+				}
+				compact(admin, queue);
+			} finally {
+				admin.close();
+			}
+		} finally {
+			SharedConnection.release(connection);
+		}
+	}
+
+	/**
+	 * Print the stats of the given regions of a table
+	 * @return the regions to compact
+	 */
+	private List<RegionStats> check(Connection connection, Admin admin, TableName tableName,
+			Collection<String> encodedRegionNames) throws IOException {
+		List<RegionStats> queue = new ArrayList<RegionStats>();
+		HTableDescriptor htd = admin.getTableDescriptor(tableName);
+		RegionLocator locator = connection.getRegionLocator(tableName);
+		try {
+			for (HRegionLocation location : locator.getAllRegionLocations()) {
+				if (!encodedRegionNames.contains(location.getRegionInfo().getEncodedName())) {
+					continue;
+				}
+				RegionStats stats = stats(htd, location);
+				boolean compact = stats.locality < minLocality || stats.storeFiles > maxStoreFiles;
+				System.out.println(String.format("%s %s %s locality=%.2f storefiles=%d%s", tableName,
+						location.getRegionInfo().getEncodedName(), location.getHostname(),
+						stats.locality, stats.storeFiles, compact ? " compact" : ""));
+				if (compact) {
+					queue.add(stats);
+				}
+			}
+		} finally {
+			locator.close();
+		}
+		return queue;
+	}
+
+	private RegionStats stats(HTableDescriptor htd, HRegionLocation location) throws IOException {
+		RegionStats stats = new RegionStats();
+		stats.htd = htd;
+		stats.location = location;
+		stats.locality = HRegion.computeHDFSBlocksDistribution(conf, htd, location.getRegionInfo())
+				.getBlockLocalityIndex(location.getHostname());
+		stats.files = storeFiles(htd, location);
+		for (HColumnDescriptor family : htd.getColumnFamilies()) {
+			int files = 0;
+			for (String file : stats.files) {
+				if (file.startsWith(family.getNameAsString() + Path.SEPARATOR)) {
+					files++;
+				}
+			}
+			stats.storeFiles = Math.max(stats.storeFiles, files);
+		}
+		return stats;
+	}
+
+	/**
+	 * @return family/name of every store file of the region
+	 */
+	private Set<String> storeFiles(HTableDescriptor htd, HRegionLocation location) throws IOException {
+		Set<String> files = new HashSet<String>();
+		Path regionDir = new Path(FSUtils.getTableDir(FSUtils.getRootDir(conf), htd.getTableName()),
+				location.getRegionInfo().getEncodedName());
+		FileSystem fs = regionDir.getFileSystem(conf);
+		for (HColumnDescriptor family : htd.getColumnFamilies()) {
+			Path familyDir = new Path(regionDir, family.getNameAsString());
+			if (!fs.exists(familyDir)) {
+				continue;
+			}
+			for (FileStatus file : fs.listStatus(familyDir)) {
+				if (file.isFile() && !file.getPath().getName().startsWith(".")) {
+					files.add(family.getNameAsString() + Path.SEPARATOR + file.getPath().getName());
+				}
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Major compact the queued regions, keeping at most <code>concurrency</code>
+	 * running. A queued major compaction already reports no compaction in
+	 * progress, so a region only counts as done once none of the store files it
+	 * had when the compaction was requested are left, or after
+	 * <code>bulkload.compact.timeout.ms</code>.
+	 */
+	private void compact(Admin admin, List<RegionStats> queue)
+			throws IOException, InterruptedException {
+		LinkedList<RegionStats> pending = new LinkedList<RegionStats>(queue);
+		List<RegionStats> running = new ArrayList<RegionStats>();
+		while (!pending.isEmpty() || !running.isEmpty()) {
+			while (running.size() < concurrency && !pending.isEmpty()) {
+				RegionStats region = pending.removeFirst();
+				admin.majorCompactRegion(region.location.getRegionInfo().getRegionName());
+				region.requested = System.currentTimeMillis();
+				running.add(region);
+			}
+			Thread.sleep(pollMillis);
+			for (Iterator<RegionStats> it = running.iterator(); it.hasNext();) {
+				RegionStats region = it.next();
+				CompactionState state = admin.getCompactionStateForRegion(
+						region.location.getRegionInfo().getRegionName());
+				if (state != CompactionState.NONE) {
+					continue;
+				}
+				Set<String> left = storeFiles(region.htd, region.location);
+				left.retainAll(region.files);
+				if (left.isEmpty()) {
+					it.remove();
+				} else if (System.currentTimeMillis() - region.requested > timeoutMillis) {
+					System.err.println("WARNING: " + region.location.getRegionInfo().getEncodedName()
+							+ " still has " + left.size() + " store files from before its major compaction");
+					it.remove();
+				}
+			}
+		}
+		if (!queue.isEmpty()) {
+			System.out.println("Major compacted " + queue.size() + " regions");
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package com.cloudera.services.hbase;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+
+/**
+ * Scans all rows sharing the first natural key field. {@link RowKeyConverter}
+ * starts every key with md5(f1), so those rows are one contiguous range; it is
+ * cut at region boundaries and the pieces are scanned in parallel on
+ * <code>bulkload.scan.threads</code> threads, with
+ * <code>bulkload.scan.caching</code> rows per RPC and, if set,
+ * <code>bulkload.scan.batch</code> cells per Result:
+ *
+ * <pre>
+ * PrefixScanner scanner = new PrefixScanner(connection, TableName.valueOf("qualys"), conf);
+ * PrefixScanner.Rows rows = scanner.scan("ACME", "Initech");
+ * try {
+ *     while (rows.hasNext()) {
+ *         Result row = rows.next();
+ *     }
+ * } finally {
+ *     rows.close();
+ * }
+ * </pre>
+ *
+ * Rows arrive as the scans produce them, so they are only ordered within a
+ * region. Several f1 values are scanned concurrently on the same threads.
+ */
+public class PrefixScanner {
+
+	public static final String THREADS_KEY = "bulkload.scan.threads";
+	public static final String CACHING_KEY = "bulkload.scan.caching";
+	public static final String BATCH_KEY = "bulkload.scan.batch";
+
+	/** queued by a range scan once it is done */
+	private static final Result END = new Result();
+
+	/**
+	 * The rows of one {@link PrefixScanner#scan(String...)} call. Scan errors
+	 * surface from hasNext wrapped in a RuntimeException.
+	 */
+	public static class Rows implements Iterator<Result>, Closeable {
+		private final BlockingQueue<Result> queue;
+		private final List<Future<?>> scans = new ArrayList<Future<?>>();
+		private volatile IOException error;
+		private volatile boolean closed;
+		private int running;
+		private Result next;
+
+		Rows(int capacity) {
+			this.queue = new ArrayBlockingQueue<Result>(capacity);
+		}
+
+		/**
+		 * Queue a row, waiting for room unless the rows have been closed
+		 */
+		void put(Result result) throws InterruptedException {
+			while (!closed && !queue.offer(result, 100, TimeUnit.MILLISECONDS)) {
+				// the reader is behind
+			}
+		}
+
+		public boolean hasNext() {
+			while (next == null && running > 0) {
+				try {
+					Result result = queue.take();
+					if (result == END) {
+						running--;
+					} else {
+						next = result;
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException("Interrupted waiting for rows", e);
+				}
+			}
+			if (next == null && error != null) {
+				throw new RuntimeException(error);
+			}
+			return next != null;
+		}
+
+		public Result next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Result result = next;
+			next = null;
+			return result;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * Stop any scans still running
+		 */
+		public void close() {
+			closed = true;
+			for (Future<?> scan : scans) {
+				scan.cancel(true);
+			}
+			running = 0;
+			queue.clear();
+		}
+	}
+
+	private final Connection connection;
+	private final TableName tableName;
+	private final ExecutorService pool;
+	private final int caching;
+	private final int batch;
+
+	public PrefixScanner(Connection connection, TableName tableName, Configuration conf) {
+		this.connection = connection;
+		this.tableName = tableName;
+		this.pool = Executors.newFixedThreadPool(conf.getInt(THREADS_KEY, 8));
+		this.caching = conf.getInt(CACHING_KEY, 1000);
+		this.batch = conf.getInt(BATCH_KEY, -1);
+	}
+
+	/**
+	 * @return the 16 bytes every row key with this first field starts with
+	 */
+	public static byte[] prefix(String f1) {
+		return Md5Utils.md5sum(f1);
+	}
+
+	/**
+	 * @param f1s first key field values
+	 * @return the rows of all of them
+	 * @throws IOException
+	 */
+	public Rows scan(String... f1s) throws IOException {
+		List<byte[][]> ranges = new ArrayList<byte[][]>();
+		RegionLocator locator = connection.getRegionLocator(tableName);
+		try {
+			Pair<byte[][], byte[][]> regions = locator.getStartEndKeys();
+			for (String f1 : f1s) {
+				byte[] start = prefix(f1);
+				byte[] stop = stopRow(start);
+				for (int i = 0; i < regions.getFirst().length; i++) {
+					byte[] regionStart = regions.getFirst()[i];
+					byte[] regionEnd = regions.getSecond()[i];
+					byte[] from = Bytes.compareTo(regionStart, start) > 0 ? regionStart : start;
+					// an empty end or stop row is unbounded
+					byte[] to = stop.length == 0 || regionEnd.length > 0 && Bytes.compareTo(regionEnd, stop) < 0
+							? regionEnd : stop;
+					if (to.length == 0 || Bytes.compareTo(from, to) < 0) {
+						ranges.add(new byte[][] { from, to });
+					}
+				}
+			}
+		} finally {
+			locator.close();
+		}
+
+		final Rows rows = new Rows(Math.max(caching, 1) * 2);
+		rows.running = ranges.size();
+		for (final byte[][] range : ranges) {
+			rows.scans.add(pool.submit(new Runnable() {
+				public void run() {
+					try {
+						try {
+							scanRange(range[0], range[1], rows);
+						} catch (IOException e) {
+							rows.error = e;
+						} catch (RuntimeException e) {
+							rows.error = new IOException(e);
+						}
+						rows.put(END);
+					} catch (InterruptedException e) {
+						// closed
+					}
+				}
+			}));
+		}
+		return rows;
+	}
+
+	private void scanRange(byte[] start, byte[] stop, Rows rows) throws IOException, InterruptedException {
+		Table table = connection.getTable(tableName);
+		try {
+			Scan scan = new Scan(start, stop);
+			scan.setCaching(caching);
+			if (batch > 0) {
+				scan.setBatch(batch);
+			}
+			ResultScanner scanner = table.getScanner(scan);
+			try {
+				for (Result result : scanner) {
+					if (rows.closed) {
+						break;
+					}
+					rows.put(result);
+				}
+			} finally {
+				scanner.close();
+			}
+		} finally {
+			table.close();
+		}
+	}
+
+	/**
+	 * @return the first row after every row starting with the prefix
+	 */
+	static byte[] stopRow(byte[] prefix) {
+		byte[] stop = Arrays.copyOf(prefix, prefix.length);
+		for (int i = stop.length - 1; i >= 0; i--) {
+			if (stop[i] != (byte) 0xff) {
+				stop[i]++;
+				return Arrays.copyOf(stop, i + 1);
+			}
+		}
+		return HConstants.EMPTY_END_ROW;
+	}
+
+	public void close() {
+		pool.shutdown();
+	}
+}
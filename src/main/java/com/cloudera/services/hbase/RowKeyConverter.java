@@ -11,10 +11,18 @@ public class RowKeyConverter {
 	 * @return A row key whose format is:
 	 */
 	public static byte[] makeRowKey(byte[] f1, byte[] f2, byte[] f3, byte[] f4) {
-	    byte[] f1hash = Md5Utils.md5sum(new String(f1));
-	    byte[] f2hash = Md5Utils.md5sum(new String(f2));
-	    byte[] f3hash = Md5Utils.md5sum(new String(f3));
-	    byte[] f4hash = Md5Utils.md5sum(new String(f4));
+		return makeRowKey(null, f1, f2, f3, f4);
+	}
+
+	/**
+	 * As {@link #makeRowKey(byte[], byte[], byte[], byte[])}, taking repeated
+	 * field digests from the cache when one is given
+	 */
+	public static byte[] makeRowKey(Md5Cache cache, byte[] f1, byte[] f2, byte[] f3, byte[] f4) {
+	    byte[] f1hash = cache != null ? cache.md5sum(f1) : Md5Utils.md5sum(new String(f1));
+	    byte[] f2hash = cache != null ? cache.md5sum(f2) : Md5Utils.md5sum(new String(f2));
+	    byte[] f3hash = cache != null ? cache.md5sum(f3) : Md5Utils.md5sum(new String(f3));
+	    byte[] f4hash = cache != null ? cache.md5sum(f4) : Md5Utils.md5sum(new String(f4));
 	    byte[] rowkey = new byte[KEY_WIDTH];
 
     //    StringUtils.leftPad(Integer.toString(Math.abs(new String(f1).hashCode() % REGION_COUNT)), 4, "0");
@@ -0,0 +1,145 @@
+package com.cloudera.services.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.mapreduce.Job;
+
+/**
+ * Per-record operation markers for the text and CSV importers. With
+ * <code>bulkload.op.enabled</code>, every record carries one extra, last field:
+ * <code>I</code> (insert) or <code>U</code> (update) writes the row as usual,
+ * <code>D</code> (delete) deletes it within the same bulk load. A delete
+ * record whose non-key columns are all empty deletes the whole row (a
+ * DeleteFamily marker per family in <code>bulkload.op.delete.families</code>,
+ * default "c"); otherwise only the non-empty columns are deleted (one
+ * DeleteColumn marker each).
+ * <p>
+ * Deletes travel through the shuffle as Puts flagged with an attribute, since
+ * Put serialization keeps attributes but not cell types, and
+ * {@link TrackingPutSortReducer} turns them into delete KeyValues. Markers get
+ * the same timestamp as the load's Puts, so a row both inserted and deleted in
+ * one load ends up deleted; enable bulkload.dedup.enabled to keep only the
+ * last operation per row within each mapper.
+ */
+public class RowOperations {
+
+	public static final String ENABLED_KEY = "bulkload.op.enabled";
+	public static final String DELETE_FAMILIES_KEY = "bulkload.op.delete.families";
+	static final String DELETE_ATTRIBUTE = "bulkload.delete";
+	/** the first columns make up the row key and are never deleted one by one */
+	static final int KEY_COLUMNS = 4;
+
+	public static boolean isEnabled(Configuration conf) {
+		return conf.getBoolean(ENABLED_KEY, false);
+	}
+
+	/**
+	 * Have the reducer write deletes as delete markers. Call after the reducer has been chosen.
+	 * @param job
+	 * @throws IOException
+	 */
+	public static void configureJob(Job job) throws IOException {
+		if (isEnabled(job.getConfiguration())) {
+			TrackingPutSortReducer.configureJob(job);
+		}
+	}
+
+	/**
+	 * Apply a record's operation marker to the Put built from its columns
+	 * @param marker the record's operation field
+	 * @param put the row's cells, qualified by column index
+	 * @return the Put to emit, flagged as a delete for delete records, or null for an unknown marker
+	 */
+	public static Put apply(String marker, Put put) {
+		String op = marker.trim().toUpperCase();
+		if (op.equals("I") || op.equals("U") || op.equals("INSERT") || op.equals("UPDATE")) {
+			return put;
+		}
+		if (!isDelete(marker)) {
+			return null;
+		}
+		Put delete = new Put(put.getRow());
+		delete.setAttribute(DELETE_ATTRIBUTE, HConstants.EMPTY_BYTE_ARRAY);
+		for (List<Cell> cells : put.getFamilyCellMap().values()) {
+			for (Cell cell : cells) {
+				if (cell.getValueLength() > 0 && cell.getQualifierLength() == Bytes.SIZEOF_INT
+						&& Bytes.toInt(cell.getQualifierArray(), cell.getQualifierOffset()) >= KEY_COLUMNS) {
+					delete.addColumn(CellUtil.cloneFamily(cell), CellUtil.cloneQualifier(cell),
+							HConstants.EMPTY_BYTE_ARRAY);
+				}
+			}
+		}
+		return delete;
+	}
+
+	/**
+	 * @return true if the record's operation field marks a delete
+	 */
+	public static boolean isDelete(String marker) {
+		String op = marker.trim().toUpperCase();
+		return op.equals("D") || op.equals("DELETE");
+	}
+
+	public static boolean isDelete(Put put) {
+		return put.getAttribute(DELETE_ATTRIBUTE) != null;
+	}
+
+	/**
+	 * Carry the delete flag over to a copy of the Put
+	 */
+	public static void copyOp(Put from, Put to) {
+		if (isDelete(from)) {
+			to.setAttribute(DELETE_ATTRIBUTE, HConstants.EMPTY_BYTE_ARRAY);
+		}
+	}
+
+	/**
+	 * @return the delete markers a flagged Put stands for
+	 */
+	public static List<KeyValue> toKeyValues(Put put, Configuration conf) {
+		List<KeyValue> kvs = new ArrayList<KeyValue>();
+		for (List<Cell> cells : put.getFamilyCellMap().values()) {
+			for (Cell cell : cells) {
+				kvs.add(new KeyValue(put.getRow(), CellUtil.cloneFamily(cell), CellUtil.cloneQualifier(cell),
+						HConstants.LATEST_TIMESTAMP, KeyValue.Type.DeleteColumn));
+			}
+		}
+		if (kvs.isEmpty()) {
+			for (String family : conf.getTrimmedStrings(DELETE_FAMILIES_KEY, "c")) {
+				kvs.add(new KeyValue(put.getRow(), Bytes.toBytes(family), null,
+						HConstants.LATEST_TIMESTAMP, KeyValue.Type.DeleteFamily));
+			}
+		}
+		return kvs;
+	}
+
+	/**
+	 * @return the client Delete a flagged Put stands for, for the streaming path
+	 */
+	public static Delete toDelete(Put put, Configuration conf) {
+		Delete delete = new Delete(put.getRow());
+		boolean columns = false;
+		for (List<Cell> cells : put.getFamilyCellMap().values()) {
+			for (Cell cell : cells) {
+				delete.addColumns(CellUtil.cloneFamily(cell), CellUtil.cloneQualifier(cell));
+				columns = true;
+			}
+		}
+		if (!columns) {
+			for (String family : conf.getTrimmedStrings(DELETE_FAMILIES_KEY, "c")) {
+				delete.addFamily(Bytes.toBytes(family));
+			}
+		}
+		return delete;
+	}
+}
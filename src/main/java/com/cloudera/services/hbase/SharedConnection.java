@@ -0,0 +1,51 @@
+package com.cloudera.services.hbase;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.ConnectionFactory;
+
+/**
+ * Connection used by the importers' drivers. A one-shot import gets its own
+ * connection. A long-running process such as {@link DirectoryIngester} opens
+ * one shared connection, with its region location cache, and every import it
+ * runs reuses it.
+ */
+public class SharedConnection {
+
+	private static Connection shared;
+
+	/**
+	 * Make {@link #acquire(Configuration)} hand out one connection until {@link #close()}
+	 * @param conf
+	 * @throws IOException
+	 */
+	public static synchronized void open(Configuration conf) throws IOException {
+		if (shared == null) {
+			shared = ConnectionFactory.createConnection(conf);
+		}
+	}
+
+	public static synchronized Connection acquire(Configuration conf) throws IOException {
+		return shared != null ? shared : ConnectionFactory.createConnection(conf);
+	}
+
+	/**
+	 * Close a connection from {@link #acquire(Configuration)}, unless it is the shared one
+	 * @param connection
+	 * @throws IOException
+	 */
+	public static synchronized void release(Connection connection) throws IOException {
+		if (connection != shared) {
+			connection.close();
+		}
+	}
+
+	public static synchronized void close() throws IOException {
+		if (shared != null) {
+			shared.close();
+			shared = null;
+		}
+	}
+}
@@ -0,0 +1,337 @@
+package com.cloudera.services.hbase;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.hadoop.hbase.MetaTableAccessor;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.RegionLocator;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.client.Table;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+
+/**
+ * Region boundaries for job setup on tables with many regions. The start keys
+ * HFileOutputFormat2.configureIncrementalLoad partitions on are read from
+ * hbase:meta by <code>bulkload.splits.threads</code> (default 8) parallel
+ * scans, each over a slice of the table's start keys, instead of one scan.
+ * <p>
+ * With <code>bulkload.splits.cache.dir</code> set, they are also saved as
+ * <code>&lt;dir&gt;/&lt;table&gt;/&lt;region set hash&gt;.splits</code>, the hash
+ * covering every start key, so a split or merge yields a new version. A
+ * later run reuses the newest version written within
+ * <code>bulkload.splits.cache.ttl.minutes</code> (default 60) once
+ * <code>bulkload.splits.cache.check</code> (default 8) sampled regions still
+ * match it and its start keys still hash to its version; otherwise it reads
+ * meta again.
+ */
+public class SplitPoints {
+
+	public static final String THREADS_KEY = "bulkload.splits.threads";
+	public static final String CACHE_DIR_KEY = "bulkload.splits.cache.dir";
+	public static final String CACHE_TTL_KEY = "bulkload.splits.cache.ttl.minutes";
+	public static final String CACHE_CHECK_KEY = "bulkload.splits.cache.check";
+	static final String VERSION = "#splits-v1";
+	static final String SUFFIX = ".splits";
+	/** meta slices per thread, so uneven slices still spread over the threads */
+	private static final int SLICES_PER_THREAD = 4;
+
+	/**
+	 * A RegionLocator whose start and end keys come from the cache or the
+	 * parallel meta scan; region lookups go to the table's own locator
+	 */
+	static class CachedLocator implements RegionLocator {
+		private final RegionLocator locator;
+		private final Configuration conf;
+		private final Connection connection;
+		private byte[][] startKeys;
+
+		CachedLocator(RegionLocator locator, Configuration conf, Connection connection) {
+			this.locator = locator;
+			this.conf = conf;
+			this.connection = connection;
+		}
+
+		public HRegionLocation getRegionLocation(byte[] row) throws IOException {
+			return locator.getRegionLocation(row);
+		}
+
+		public HRegionLocation getRegionLocation(byte[] row, boolean reload) throws IOException {
+			return locator.getRegionLocation(row, reload);
+		}
+
+		public List<HRegionLocation> getAllRegionLocations() throws IOException {
+			return locator.getAllRegionLocations();
+		}
+
+		public synchronized byte[][] getStartKeys() throws IOException {
+			if (startKeys == null) {
+				startKeys = load(conf, connection, locator);
+			}
+			return startKeys;
+		}
+
+		public byte[][] getEndKeys() throws IOException {
+			byte[][] startKeys = getStartKeys();
+			byte[][] endKeys = new byte[startKeys.length][];
+			for (int i = 0; i < startKeys.length; i++) {
+				endKeys[i] = i + 1 < startKeys.length ? startKeys[i + 1] : HConstants.EMPTY_END_ROW;
+			}
+			return endKeys;
+		}
+
+		public Pair<byte[][], byte[][]> getStartEndKeys() throws IOException {
+			return new Pair<byte[][], byte[][]>(getStartKeys(), getEndKeys());
+		}
+
+		public TableName getName() {
+			return locator.getName();
+		}
+
+		public void close() throws IOException {
+			locator.close();
+		}
+	}
+
+	/**
+	 * Use in place of Connection.getRegionLocator for job setup
+	 * @param conf
+	 * @param connection
+	 * @param tableName
+	 * @throws IOException
+	 */
+	public static RegionLocator locator(Configuration conf, Connection connection, TableName tableName)
+			throws IOException {
+		return new CachedLocator(connection.getRegionLocator(tableName), conf, connection);
+	}
+
+	static byte[][] load(Configuration conf, Connection connection, RegionLocator locator) throws IOException {
+		TableName tableName = locator.getName();
+		String cacheDir = conf.get(CACHE_DIR_KEY);
+		Path dir = cacheDir == null ? null
+				: new Path(cacheDir, tableName.getNameAsString().replace(TableName.NAMESPACE_DELIM, '_'));
+		if (dir != null) {
+			byte[][] cached = readCache(conf, dir);
+			if (cached != null && matches(conf, locator, cached)) {
+				System.out.println("Using cached split points for " + tableName + " (" + cached.length + " regions)");
+				return cached;
+			}
+		}
+
+		List<HRegionInfo> regions = scanMeta(conf, connection, tableName);
+		byte[][] startKeys = new byte[regions.size()][];
+		for (int i = 0; i < regions.size(); i++) {
+			startKeys[i] = regions.get(i).getStartKey();
+		}
+		if (dir != null) {
+			writeCache(conf, dir, hash(startKeys), tableName, startKeys);
+		}
+		return startKeys;
+	}
+
+	/**
+	 * @return hex MD5 over the start keys, naming the region set's version
+	 */
+	static String hash(byte[][] startKeys) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		for (byte[] startKey : startKeys) {
+			digest.update(Bytes.toBytes(startKey.length));
+			digest.update(startKey);
+		}
+		return Bytes.toHex(digest.digest());
+	}
+
+	/**
+	 * @return the table's online regions, sorted by start key
+	 */
+	static List<HRegionInfo> scanMeta(Configuration conf, final Connection connection, final TableName tableName)
+			throws IOException {
+		int threads = conf.getInt(THREADS_KEY, 8);
+		// meta rows are "<table>,<start key>,<region id>"; slice them on the start key's first byte
+		byte[] prefix = Bytes.add(tableName.getName(), new byte[] { HConstants.DELIMITER });
+		byte[] stop = Bytes.add(tableName.getName(), new byte[] { HConstants.DELIMITER + 1 });
+		int slices = Math.min(256, Math.max(1, threads * SLICES_PER_THREAD));
+		List<byte[]> bounds = new ArrayList<byte[]>();
+		bounds.add(prefix);
+		for (int i = 1; i < slices; i++) {
+			bounds.add(Bytes.add(prefix, new byte[] { (byte) (i * 256 / slices) }));
+		}
+		bounds.add(stop);
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		List<HRegionInfo> regions = new ArrayList<HRegionInfo>();
+		try {
+			List<Future<List<HRegionInfo>>> scans = new ArrayList<Future<List<HRegionInfo>>>();
+			for (int i = 0; i < slices; i++) {
+				final byte[] start = bounds.get(i);
+				final byte[] end = bounds.get(i + 1);
+				scans.add(pool.submit(new Callable<List<HRegionInfo>>() {
+					public List<HRegionInfo> call() throws IOException {
+						return scanMeta(connection, tableName, start, end);
+					}
+				}));
+			}
+			for (Future<List<HRegionInfo>> scan : scans) {
+				regions.addAll(scan.get());
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted reading the regions of " + tableName);
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+		Collections.sort(regions);
+		return regions;
+	}
+
+	private static List<HRegionInfo> scanMeta(Connection connection, TableName tableName, byte[] start,
+			byte[] end) throws IOException {
+		List<HRegionInfo> regions = new ArrayList<HRegionInfo>();
+		Table meta = connection.getTable(TableName.META_TABLE_NAME);
+		try {
+			Scan scan = new Scan(start, end);
+			scan.addColumn(HConstants.CATALOG_FAMILY, HConstants.REGIONINFO_QUALIFIER);
+			scan.setCaching(1000);
+			ResultScanner scanner = meta.getScanner(scan);
+			try {
+				for (Result result : scanner) {
+					HRegionInfo region = MetaTableAccessor.getHRegionInfo(result);
+					if (region != null && region.getTable().equals(tableName) && !region.isOffline()
+							&& !region.isSplitParent()) {
+						regions.add(region);
+					}
+				}
+			} finally {
+				scanner.close();
+			}
+		} finally {
+			meta.close();
+		}
+		return regions;
+	}
+
+	/**
+	 * @return the start keys of the newest version younger than the TTL, or
+	 *         null if there is none or its content does not match its version
+	 */
+	private static byte[][] readCache(Configuration conf, Path dir) throws IOException {
+		FileSystem fs = dir.getFileSystem(conf);
+		if (!fs.exists(dir)) {
+			return null;
+		}
+		FileStatus newest = null;
+		for (FileStatus status : fs.listStatus(dir)) {
+			if (status.getPath().getName().endsWith(SUFFIX)
+					&& (newest == null || status.getModificationTime() > newest.getModificationTime())) {
+				newest = status;
+			}
+		}
+		long ttl = conf.getLong(CACHE_TTL_KEY, 60) * 60 * 1000;
+		if (newest == null || System.currentTimeMillis() - newest.getModificationTime() > ttl) {
+			return null;
+		}
+		List<byte[]> startKeys = new ArrayList<byte[]>();
+		String[] header;
+		BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(newest.getPath()), "UTF-8"));
+		try {
+			String line = in.readLine();
+			if (line == null || !line.startsWith(VERSION + "\t")) {
+				return null;
+			}
+			header = line.split("\t");
+			while ((line = in.readLine()) != null) {
+				startKeys.add(Bytes.toBytesBinary(line));
+			}
+		} finally {
+			in.close();
+		}
+		if (startKeys.isEmpty() || header.length != 4) {
+			return null;
+		}
+		byte[][] cached = startKeys.toArray(new byte[startKeys.size()][]);
+		String version = newest.getPath().getName();
+		version = version.substring(0, version.length() - SUFFIX.length());
+		if (!version.equals(header[2]) || !version.equals(hash(cached))
+				|| !Integer.toString(cached.length).equals(header[3])) {
+			return null;
+		}
+		return cached;
+	}
+
+	private static void writeCache(Configuration conf, Path dir, String hash, TableName tableName,
+			byte[][] startKeys) throws IOException {
+		FileSystem fs = dir.getFileSystem(conf);
+		Path file = new Path(dir, hash + SUFFIX);
+		Path tmp = new Path(dir, "." + hash + SUFFIX + ".tmp");
+		Writer out = new OutputStreamWriter(fs.create(tmp, true), "UTF-8");
+		try {
+			out.write(VERSION + "\t" + tableName + "\t" + hash + "\t" + startKeys.length + "\n");
+			for (byte[] startKey : startKeys) {
+				out.write(Bytes.toStringBinary(startKey) + "\n");
+			}
+		} finally {
+			out.close();
+		}
+		fs.delete(file, false);
+		if (!fs.rename(tmp, file)) {
+			throw new IOException("Could not rename " + tmp + " to " + file);
+		}
+		// older versions are never newer than this one again
+		for (FileStatus status : fs.listStatus(dir)) {
+			if (status.getPath().getName().endsWith(SUFFIX) && !status.getPath().getName().equals(file.getName())) {
+				fs.delete(status.getPath(), false);
+			}
+		}
+	}
+
+	/**
+	 * Spot-check cached boundaries against the regions currently serving them
+	 */
+	private static boolean matches(Configuration conf, RegionLocator locator, byte[][] startKeys)
+			throws IOException {
+		int checks = Math.min(startKeys.length, conf.getInt(CACHE_CHECK_KEY, 8));
+		Random random = new Random();
+		for (int i = 0; i < checks; i++) {
+			int region = random.nextInt(startKeys.length);
+			HRegionInfo info = locator.getRegionLocation(startKeys[region], true).getRegionInfo();
+			byte[] endKey = region + 1 < startKeys.length ? startKeys[region + 1] : HConstants.EMPTY_END_ROW;
+			if (!Arrays.equals(info.getStartKey(), startKeys[region]) || !Arrays.equals(info.getEndKey(), endKey)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
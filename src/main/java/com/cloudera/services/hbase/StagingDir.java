@@ -0,0 +1,118 @@
+package com.cloudera.services.hbase;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.util.FSHDFSUtils;
+import org.apache.hadoop.hbase.util.FSUtils;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.client.HdfsAdmin;
+import org.apache.hadoop.hdfs.protocol.EncryptionZone;
+
+/**
+ * Keeps the HFile output where the bulk load can rename it into the table.
+ * LoadIncrementalHFiles copies every HFile when the output is on another
+ * filesystem or nameservice than hbase.rootdir, or in another HDFS encryption
+ * zone. The output dir is checked against the root before the job runs; if
+ * its encryption zone cannot be read, a warning is printed and it is assumed
+ * to match. With <code>bulkload.staging.relocate</code> a mismatched output is
+ * moved under <code>bulkload.staging.dir</code> (default hbase.fs.tmp.dir) on
+ * the root's filesystem; otherwise a warning is printed and, after the job,
+ * the number of bytes that will be copied.
+ */
+public class StagingDir {
+
+	public static final String RELOCATE_KEY = "bulkload.staging.relocate";
+	public static final String DIR_KEY = "bulkload.staging.dir";
+
+	/**
+	 * @return the dir to write HFiles to: the requested output, or its relocated
+	 *         counterpart if that one is loadable by rename
+	 * @param conf
+	 * @param output the output dir the user asked for
+	 * @throws IOException
+	 */
+	public static Path place(Configuration conf, Path output) throws IOException {
+		String reason = copyReason(conf, output);
+		if (reason == null) {
+			return output;
+		}
+		if (conf.getBoolean(RELOCATE_KEY, false)) {
+			Path rootDir = FSUtils.getRootDir(conf);
+			Path relocated = rootDir.getFileSystem(conf).makeQualified(
+					new Path(conf.get(DIR_KEY, conf.get("hbase.fs.tmp.dir")), output.getName()));
+			String relocatedReason = copyReason(conf, relocated);
+			if (relocatedReason == null) {
+				System.out.println("Writing HFiles to " + relocated + " instead of " + output
+						+ " (" + reason + ")");
+				return relocated;
+			}
+			System.err.println("WARNING: cannot relocate output to " + relocated + ": " + relocatedReason);
+		}
+		System.err.println("WARNING: " + output + " " + reason + "; the bulk load will copy every HFile."
+				+ " Set " + RELOCATE_KEY + "=true or choose an output on the HBase root's filesystem.");
+		return output;
+	}
+
+	/**
+	 * After the job, print and record how many bytes the load will copy, if any
+	 * @param conf
+	 * @param outputDir
+	 * @param report
+	 * @throws IOException
+	 */
+	public static void reportCopy(Configuration conf, Path outputDir, ImportReport report) throws IOException {
+		if (copyReason(conf, outputDir) == null) {
+			report.setCopyBytes(0);
+			return;
+		}
+		long bytes = outputDir.getFileSystem(conf).getContentSummary(outputDir).getLength();
+		System.err.println("WARNING: the bulk load will copy " + bytes + " bytes of HFiles from " + outputDir);
+		report.setCopyBytes(bytes);
+	}
+
+	/**
+	 * @return why loading from the dir would copy rather than rename, or null if it would not
+	 */
+	static String copyReason(Configuration conf, Path dir) throws IOException {
+		Path rootDir = FSUtils.getRootDir(conf);
+		FileSystem rootFs = rootDir.getFileSystem(conf);
+		FileSystem fs = dir.getFileSystem(conf);
+		// the same test HRegionFileSystem uses to decide between rename and copy
+		if (!FSHDFSUtils.isSameHdfs(conf, fs, rootFs)) {
+			return "is not on the same HDFS as " + rootDir;
+		}
+		if (fs instanceof DistributedFileSystem) {
+			String rootZone;
+			String zone;
+			try {
+				HdfsAdmin hdfs = new HdfsAdmin(fs.getUri(), conf);
+				rootZone = zone(hdfs, rootDir);
+				zone = zone(hdfs, nearestExisting(fs, fs.makeQualified(dir)));
+			} catch (IOException e) {
+				// reading encryption zones needs HDFS superuser rights
+				System.err.println("WARNING: could not check the encryption zone of " + dir + ": " + e.getMessage());
+				return null;
+			}
+			if (rootZone == null ? zone != null : !rootZone.equals(zone)) {
+				return "is in encryption zone " + zone + " but " + rootDir + " is in " + rootZone;
+			}
+		}
+		return null;
+	}
+
+	private static String zone(HdfsAdmin hdfs, Path path) throws IOException {
+		EncryptionZone zone = hdfs.getEncryptionZoneForPath(path);
+		return zone == null ? null : zone.getPath();
+	}
+
+	/** the output dir usually does not exist yet; its zone is that of its closest ancestor */
+	private static Path nearestExisting(FileSystem fs, Path path) throws IOException {
+		while (!fs.exists(path) && path.getParent() != null) {
+			path = path.getParent();
+		}
+		return path;
+	}
+}
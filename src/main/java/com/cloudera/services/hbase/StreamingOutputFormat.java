@@ -0,0 +1,138 @@
+package com.cloudera.services.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.BufferedMutator;
+import org.apache.hadoop.hbase.client.BufferedMutatorParams;
+import org.apache.hadoop.hbase.client.Connection;
+import org.apache.hadoop.hbase.client.ConnectionFactory;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.OutputFormat;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.NullOutputFormat;
+
+/**
+ * Streaming route for small inputs. Below <code>bulkload.stream.threshold.mb</code>
+ * of input, the importer runs its mapper as a map-only job, by default in the
+ * local runner, and writes the Puts through a BufferedMutator instead of
+ * generating and bulk loading HFiles. The mapper is the same one the bulk
+ * load path uses, so the same cells are written. Puts tagged by
+ * {@link MultiTableOutput} go to their own table's mutator.
+ */
+public class StreamingOutputFormat extends OutputFormat<ImmutableBytesWritable, Put> {
+
+	public static final String THRESHOLD_MB_KEY = "bulkload.stream.threshold.mb";
+	public static final String BUFFER_MB_KEY = "bulkload.stream.buffer.mb";
+	public static final String THREADS_KEY = "bulkload.stream.threads";
+	public static final String LOCAL_KEY = "bulkload.stream.local";
+	static final String TABLE_KEY = "bulkload.stream.table";
+
+	/**
+	 * @return true if streaming is enabled and the input is below the threshold
+	 * @param conf
+	 * @param input
+	 * @throws IOException
+	 */
+	public static boolean isSmall(Configuration conf, Path input) throws IOException {
+		long threshold = conf.getLong(THRESHOLD_MB_KEY, 0) * 1024 * 1024;
+		if (threshold <= 0) {
+			return false;
+		}
+		FileSystem fs = input.getFileSystem(conf);
+		return fs.exists(input) && fs.getContentSummary(input).getLength() < threshold;
+	}
+
+	/**
+	 * Turn the job into a map-only job that writes straight to the table and run it
+	 * @param job
+	 * @param tableName the importer's table, used unless multi-table output is configured
+	 * @return 0 on success
+	 * @throws Exception
+	 */
+	public static int run(Job job, String tableName) throws Exception {
+		Configuration conf = job.getConfiguration();
+		conf.set(TABLE_KEY, tableName);
+		if (conf.getBoolean(LOCAL_KEY, true)) {
+			conf.set("mapreduce.framework.name", "local");
+			conf.setInt("mapreduce.local.map.tasks.maximum", conf.getInt(THREADS_KEY, 4));
+		}
+		job.setNumReduceTasks(0);
+		job.setOutputFormatClass(StreamingOutputFormat.class);
+		job.setOutputKeyClass(ImmutableBytesWritable.class);
+		job.setOutputValueClass(Put.class);
+		System.out.println("Input below " + conf.get(THRESHOLD_MB_KEY) + " MB, streaming through BufferedMutator");
+		return job.waitForCompletion(true) ? 0 : 1;
+	}
+
+	@Override
+	public void checkOutputSpecs(JobContext context) {
+	}
+
+	@Override
+	public OutputCommitter getOutputCommitter(TaskAttemptContext context) {
+		// nothing to commit, the Puts are already in the table
+		return new NullOutputFormat<ImmutableBytesWritable, Put>().getOutputCommitter(context);
+	}
+
+	@Override
+	public RecordWriter<ImmutableBytesWritable, Put> getRecordWriter(TaskAttemptContext context)
+			throws IOException {
+		final Configuration conf = context.getConfiguration();
+		MultiTableOutput tables = MultiTableOutput.fromConf(conf);
+		final boolean tagged = tables != null;
+		final boolean operations = RowOperations.isEnabled(conf);
+		List<String> tableNames = new ArrayList<String>();
+		if (tagged) {
+			tableNames.addAll(tables.getTableNames());
+		} else {
+			tableNames.add(conf.get(TABLE_KEY));
+		}
+
+		final Connection connection = ConnectionFactory.createConnection(conf);
+		// flushes to different region servers go out in parallel on this pool
+		final ExecutorService pool = Executors.newFixedThreadPool(conf.getInt(THREADS_KEY, 4));
+		final BufferedMutator[] mutators = new BufferedMutator[tableNames.size()];
+		for (int i = 0; i < mutators.length; i++) {
+			mutators[i] = connection.getBufferedMutator(new BufferedMutatorParams(TableName.valueOf(tableNames.get(i)))
+					.writeBufferSize(conf.getLong(BUFFER_MB_KEY, 8) * 1024 * 1024)
+					.pool(pool));
+		}
+
+		return new RecordWriter<ImmutableBytesWritable, Put>() {
+			@Override
+			public void write(ImmutableBytesWritable key, Put put) throws IOException {
+				BufferedMutator mutator = mutators[tagged ? key.get()[key.getOffset()] & 0xff : 0];
+				if (operations && RowOperations.isDelete(put)) {
+					mutator.mutate(RowOperations.toDelete(put, conf));
+				} else {
+					mutator.mutate(put);
+				}
+			}
+
+			@Override
+			public void close(TaskAttemptContext c) throws IOException {
+				try {
+					for (BufferedMutator mutator : mutators) {
+						mutator.close();
+					}
+				} finally {
+					pool.shutdown();
+					connection.close();
+				}
+			}
+		};
+	}
+}
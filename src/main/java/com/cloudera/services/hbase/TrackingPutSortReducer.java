@@ -0,0 +1,152 @@
+package com.cloudera.services.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.KeyValueUtil;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.mapreduce.PutSortReducer;
+import org.apache.hadoop.mapreduce.Job;
+
+/**
+ * PutSortReducer that also records its row keys for {@link MembershipFilter},
+ * its allocation for {@link AllocationMeter} and the checksums of the cells it
+ * writes for {@link LoadChecksums}, and writes the deletes flagged by
+ * {@link RowOperations} as delete markers, whichever are enabled. Cells hidden
+ * by a delete marker written for the same row are left out of the checksum.
+ */
+public class TrackingPutSortReducer extends PutSortReducer {
+
+	private MembershipCollector membership;
+	private AllocationMeter meter;
+	private ChecksumCollector checksums;
+	private boolean operations;
+	private long rowThreshold;
+
+	/**
+	 * Replace the job's PutSortReducer, if that is its reducer
+	 * @param job
+	 * @throws IOException
+	 */
+	static void configureJob(Job job) throws IOException {
+		try {
+			if (job.getReducerClass() == PutSortReducer.class) {
+				job.setReducerClass(TrackingPutSortReducer.class);
+			}
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	protected void setup(Context context) throws IOException, InterruptedException {
+		membership = MembershipCollector.fromConf(context.getConfiguration());
+		meter = AllocationMeter.fromConf(context.getConfiguration(), false);
+		checksums = ChecksumCollector.fromConf(context.getConfiguration());
+		operations = RowOperations.isEnabled(context.getConfiguration());
+		rowThreshold = context.getConfiguration().getLong("putsortreducer.row.threshold", 1L * (1 << 30));
+	}
+
+	@Override
+	protected void reduce(ImmutableBytesWritable row, Iterable<Put> puts, Context context)
+			throws IOException, InterruptedException {
+		if (meter != null) {
+			meter.tick();
+		}
+		if (membership != null) {
+			membership.add(row.get(), row.getOffset(), row.getLength());
+		}
+		if (checksums == null && !operations) {
+			super.reduce(row, puts, context);
+			return;
+		}
+		if (checksums != null) {
+			checksums.startRow(row.get(), row.getOffset(), row.getLength());
+		}
+		// with deletes, the checksummed cells wait for the row's delete markers,
+		// which may come in a later chunk and hide them
+		List<KeyValue> checksummed = checksums != null && operations ? new ArrayList<KeyValue>() : null;
+		List<KeyValue> markers = checksummed != null ? new ArrayList<KeyValue>() : null;
+		// as PutSortReducer, but every cell written is also added to the checksum
+		// and flagged deletes become delete markers
+		Iterator<Put> it = puts.iterator();
+		while (it.hasNext()) {
+			TreeSet<KeyValue> sorted = new TreeSet<KeyValue>(KeyValue.COMPARATOR);
+			long size = 0;
+			while (it.hasNext() && size < rowThreshold) {
+				Put put = it.next();
+				if (operations && RowOperations.isDelete(put)) {
+					for (KeyValue kv : RowOperations.toKeyValues(put, context.getConfiguration())) {
+						sorted.add(kv);
+						size += kv.heapSize();
+					}
+					continue;
+				}
+				for (List<Cell> cells : put.getFamilyCellMap().values()) {
+					for (Cell cell : cells) {
+						KeyValue kv = cell instanceof KeyValue ? (KeyValue) cell : KeyValueUtil.copyToNewKeyValue(cell);
+						sorted.add(kv);
+						size += kv.heapSize();
+					}
+				}
+			}
+			for (KeyValue kv : sorted) {
+				// delete markers are not returned by scans, so they are left out of the checksum
+				if (checksums != null && kv.getTypeByte() == KeyValue.Type.Put.getCode()) {
+					if (checksummed != null) {
+						checksummed.add(kv);
+					} else {
+						checksums.add(kv);
+					}
+				} else if (markers != null) {
+					markers.add(kv);
+				}
+				context.write(row, kv);
+			}
+		}
+		if (checksummed != null) {
+			for (KeyValue kv : checksummed) {
+				if (!isDeleted(kv, markers)) {
+					checksums.add(kv);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true if a DeleteFamily or DeleteColumn marker written for the row hides the cell from scans
+	 */
+	private static boolean isDeleted(KeyValue kv, List<KeyValue> markers) {
+		for (KeyValue marker : markers) {
+			if (marker.getTimestamp() < kv.getTimestamp() || !CellUtil.matchingFamily(kv, marker)) {
+				continue;
+			}
+			if (marker.getTypeByte() == KeyValue.Type.DeleteFamily.getCode()
+					|| (marker.getTypeByte() == KeyValue.Type.DeleteColumn.getCode()
+							&& CellUtil.matchingQualifier(kv, marker))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	protected void cleanup(Context context) throws IOException, InterruptedException {
+		if (membership != null) {
+			membership.close(context);
+		}
+		if (checksums != null) {
+			checksums.close(context);
+		}
+		if (meter != null) {
+			meter.report(context);
+		}
+	}
+}